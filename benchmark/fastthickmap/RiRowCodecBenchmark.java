@@ -0,0 +1,103 @@
+package fastthickmap;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Benchmark of RiRowCodec. This is not part of the plugin.
+ *
+ * @author miettinen_a
+ *
+ */
+public class RiRowCodecBenchmark {
+
+	/**
+	 * Benchmark that reports the size of encoded rows compared to the
+	 * uncompressed ri data file format, and encoding and decoding throughput.
+	 * The rows are random rows where the item offsets are distributed inside
+	 * circles of the given mean radius.
+	 *
+	 * Usage: RiRowCodecBenchmark [mean radius] [fraction of empty pixels] [row length]
+	 */
+	public static void main(String[] args) throws IOException {
+		double meanr = args.length > 0 ? Double.parseDouble(args[0]) : 10;
+		double emptyFraction = args.length > 1 ? Double.parseDouble(args[1]) : 0.5;
+		int width = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		final int ROWS = 1000;
+
+		// Create test rows
+		Random random = new Random(1);
+		int[][] offsets = new int[ROWS][];
+		int[][] items = new int[ROWS][];
+		long itemCount = 0;
+		long emptyCount = 0;
+		for (int row = 0; row < ROWS; row++) {
+			offsets[row] = new int[width + 1];
+			int[] rowItems = new int[16];
+			int n = 0;
+			for (int x = 0; x < width; x++) {
+				// Empty pixels are in runs, like the background in real images.
+				boolean empty = ((x * 16 / width + row) % 16) < emptyFraction * 16;
+				int count = empty ? 0 : 1 + random.nextInt((int) Math.max(1, 0.1 * meanr));
+				if (empty)
+					emptyCount++;
+				for (int i = 0; i < count; i++) {
+					int r = (int) Math.max(1, meanr * 2 * random.nextDouble());
+					int dx = random.nextInt(2 * r + 1) - r;
+					int dy = random.nextInt(2 * r + 1) - r;
+					if (n >= rowItems.length)
+						rowItems = Arrays.copyOf(rowItems, 2 * rowItems.length);
+					rowItems[n++] = (dx << 16) | (dy & 0xffff);
+				}
+				offsets[row][x + 1] = n;
+			}
+			items[row] = Arrays.copyOf(rowItems, n);
+			itemCount += n;
+		}
+
+		// The uncompressed format stores count short for each pixel, two shorts for
+		// each item.
+		long pixelCount = (long) ROWS * width;
+		long rawSize = 2 * pixelCount + 4 * itemCount;
+
+		int maxSize = 0;
+		for (int row = 0; row < ROWS; row++)
+			maxSize = Math.max(maxSize, RiRowCodec.getMaxEncodedSize(width, items[row].length));
+		byte[] encoded = new byte[maxSize];
+		int[] decodedOffsets = new int[width + 1];
+
+		final int ROUNDS = 10;
+		long encodedSize = 0;
+		long encodeTime = 0;
+		long decodeTime = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			encodedSize = 0;
+			for (int row = 0; row < ROWS; row++) {
+				long start = System.nanoTime();
+				int size = RiRowCodec.encode(offsets[row], items[row], width, encoded, 0);
+				long mid = System.nanoTime();
+				int[] decoded = RiRowCodec.decode(encoded, RiRowCodec.HEADER_SIZE, RiRowCodec.getRecordLength(encoded, 0), width, decodedOffsets);
+				long end = System.nanoTime();
+
+				// Skip the first rounds to let the JIT compiler warm up.
+				if (round >= ROUNDS / 2) {
+					encodeTime += mid - start;
+					decodeTime += end - mid;
+				}
+				encodedSize += size;
+
+				if (!Arrays.equals(decoded, items[row]) || !Arrays.equals(decodedOffsets, offsets[row]))
+					throw new IllegalStateException("Decoded row does not match the original row.");
+			}
+		}
+
+		double measuredRawSize = (double) rawSize * (ROUNDS - ROUNDS / 2);
+		System.out.println("Mean radius " + meanr + ", " + emptyCount + " empty pixels out of " + pixelCount + ", "
+				+ itemCount + " items");
+		System.out.println("Uncompressed data: " + rawSize + " bytes");
+		System.out.println("Compressed data:   " + encodedSize + " bytes (" + String.format("%.1f", 100.0 * encodedSize / rawSize) + " %)");
+		System.out.println("Encoding: " + String.format("%.0f", measuredRawSize / (encodeTime / 1e9) / 1e6) + " MB/s of uncompressed data");
+		System.out.println("Decoding: " + String.format("%.0f", measuredRawSize / (decodeTime / 1e9) / 1e6) + " MB/s of uncompressed data");
+	}
+}
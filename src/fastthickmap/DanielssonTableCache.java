@@ -0,0 +1,381 @@
+package fastthickmap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import ij.IJ;
+
+/**
+ * Persistent cache of Danielsson lookup tables.
+ * The tables are stored in a single versioned file in the cache directory.
+ * The file is replaced atomically so that multiple ImageJ instances can share the cache,
+ * and a file lock is used to prevent the instances from overwriting entries added by each other.
+ * Tables shipped inside the plugin jar are used if the cache does not contain large enough tables.
+ *
+ * File format (big endian):
+ * int magic, int version, int table size, table1, table2, table3.
+ * Elements that are not sums of three squares are marked by INVALID and elements that have not been calculated
+ * yet are marked by UNDETERMINED.
+ *
+ * @author miettinen_a
+ *
+ */
+public class DanielssonTableCache {
+
+	/**
+	 * Magic number that identifies Danielsson table files ("DANT").
+	 */
+	private static final int MAGIC = 0x44414E54;
+
+	/**
+	 * Version of the file format and of the table generation algorithm.
+	 * Increase this whenever tables generated by an older version are not valid anymore.
+	 */
+	private static final int VERSION = 2;
+
+	/**
+	 * Value of table elements whose index is not a sum of three squares.
+	 */
+	public static final int INVALID = -1;
+
+	/**
+	 * Value of table elements that have not been calculated yet.
+	 */
+	public static final int UNDETERMINED = Integer.MAX_VALUE;
+
+	/**
+	 * Size of the file header in bytes.
+	 */
+	private static final int HEADER_SIZE = 3 * 4;
+
+	/**
+	 * Name of the table file, both in the cache directory and inside the jar.
+	 */
+	private static final String FILENAME = "danielsson_tables_v" + VERSION + ".dat";
+
+	/**
+	 * Name of the lock file in the cache directory.
+	 */
+	private static final String LOCK_FILENAME = "danielsson_tables.lock";
+
+	/**
+	 * Name of system property that can be used to set the cache directory.
+	 */
+	public static final String CACHE_DIR_PROPERTY = "fastthickmap.cachedir";
+
+	/**
+	 * Cache directory set by setCacheDirectory.
+	 */
+	private static String cacheDirectory = null;
+
+	/**
+	 * Sets the directory where the tables are cached.
+	 * If set to null, the directory is read from system property fastthickmap.cachedir,
+	 * and if that is not set, .fastthickmap folder in the user's home directory is used.
+	 * @param dir
+	 */
+	public static void setCacheDirectory(String dir) {
+		cacheDirectory = dir;
+	}
+
+	/**
+	 * Gets the directory where the tables are cached.
+	 * @return
+	 */
+	public static Path getCacheDirectory() {
+		String dir = cacheDirectory;
+		if (dir == null || dir.isEmpty())
+			dir = System.getProperty(CACHE_DIR_PROPERTY);
+		if (dir == null || dir.isEmpty())
+			return Paths.get(System.getProperty("user.home"), ".fastthickmap");
+		return Paths.get(dir);
+	}
+
+	/**
+	 * Reads the available tables.
+	 * First tries the cache directory, and if the tables found there do not contain all the required entries,
+	 * merges them with the tables in the jar.
+	 * @param radii2 Squared radii whose entries are required, in ascending order.
+	 * @return Array containing table1, table2 and table3. The tables are empty if no valid tables were found.
+	 */
+	public static int[][] read(int[] radii2) {
+		int[][] tables = readCache();
+		if (containsAll(tables, radii2))
+			return tables;
+
+		return merge(tables, readResource());
+	}
+
+	/**
+	 * Tests if the given tables contain entries for all the given squared radii.
+	 * @param radii2 Squared radii in ascending order.
+	 */
+	public static boolean containsAll(int[][] tables, int[] radii2) {
+		if (radii2.length <= 0)
+			return true;
+		if (tables[0].length <= radii2[radii2.length - 1])
+			return false;
+		for (int n = 0; n < radii2.length; n++) {
+			if (tables[0][radii2[n]] == UNDETERMINED)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Combines the entries of two sets of tables.
+	 * The result contains all entries that are determined in either of the inputs.
+	 */
+	private static int[][] merge(int[][] a, int[][] b) {
+		if (a[0].length < b[0].length) {
+			int[][] tmp = a;
+			a = b;
+			b = tmp;
+		}
+
+		int[][] result = new int[3][];
+		for (int n = 0; n < 3; n++) {
+			result[n] = a[n].clone();
+			for (int r2 = 0; r2 < b[n].length; r2++) {
+				if (result[n][r2] == UNDETERMINED)
+					result[n][r2] = b[n][r2];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Reads tables from the cache directory.
+	 * The file is read to a heap buffer in one go and copied to arrays in bulk.
+	 * The file is not memory-mapped, as a live mapping would prevent replacing the file in write on some platforms.
+	 * @return Array containing table1, table2 and table3. The tables are empty if the file does not exist or is not valid.
+	 */
+	private static int[][] readCache() {
+		Path file = getCacheDirectory().resolve(FILENAME);
+		if (!Files.exists(file))
+			return empty();
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(toBufferSize(channel.size()));
+			readFully(channel, buffer);
+			buffer.flip();
+			return parse(buffer);
+		}
+		catch (IOException e) {
+			IJ.log("Ignoring invalid Danielsson table cache " + file + ": " + e.getMessage());
+			return empty();
+		}
+	}
+
+	/**
+	 * Reads tables shipped inside the plugin jar.
+	 * @return Array containing table1, table2 and table3. The tables are empty if the jar does not contain tables.
+	 */
+	private static int[][] readResource() {
+		try (InputStream in = DanielssonTableCache.class.getResourceAsStream(FILENAME)) {
+			if (in == null)
+				return empty();
+
+			ReadableByteChannel channel = Channels.newChannel(in);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(channel, header);
+			header.flip();
+			checkHeader(header);
+
+			int size = header.getInt(8);
+			ByteBuffer buffer = ByteBuffer.allocate(toBufferSize(getFileSize(size)));
+			header.rewind();
+			buffer.put(header);
+			readFully(channel, buffer);
+			buffer.flip();
+			return parse(buffer);
+		}
+		catch (IOException e) {
+			IJ.log("Ignoring invalid prebuilt Danielsson tables: " + e.getMessage());
+			return empty();
+		}
+	}
+
+	/**
+	 * Calculates size of table file whose tables contain the given count of elements.
+	 */
+	private static long getFileSize(int size) {
+		return HEADER_SIZE + 3L * size * 4;
+	}
+
+	/**
+	 * Checks that a file of the given size fits into a ByteBuffer.
+	 * @return The size as an int.
+	 * @throws IOException If the file is too large.
+	 */
+	private static int toBufferSize(long fileSize) throws IOException {
+		if (fileSize > Integer.MAX_VALUE)
+			throw new IOException("The tables are too large.");
+		return (int)fileSize;
+	}
+
+	/**
+	 * Reads from the channel until the buffer is full.
+	 */
+	private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				throw new IOException("Unexpected end of file.");
+		}
+	}
+
+	/**
+	 * Checks that the header at the beginning of the buffer is valid.
+	 * Does not change the position of the buffer.
+	 */
+	private static void checkHeader(ByteBuffer buffer) throws IOException {
+		if (buffer.limit() < HEADER_SIZE)
+			throw new IOException("The file is too short.");
+		if (buffer.getInt(0) != MAGIC)
+			throw new IOException("The file is not a Danielsson table file.");
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException("Unsupported version " + buffer.getInt(4) + ".");
+		if (buffer.getInt(8) < 0 || buffer.getInt(8) > (Integer.MAX_VALUE - HEADER_SIZE) / (3 * 4))
+			throw new IOException("Invalid table size.");
+	}
+
+	/**
+	 * Parses tables from the given buffer.
+	 */
+	private static int[][] parse(ByteBuffer buffer) throws IOException {
+		checkHeader(buffer);
+
+		int size = buffer.getInt(8);
+		if ((long)buffer.limit() != getFileSize(size))
+			throw new IOException("The file size does not match the table size.");
+
+		buffer.position(HEADER_SIZE);
+		IntBuffer data = buffer.asIntBuffer();
+		int[][] tables = new int[3][size];
+		for (int n = 0; n < 3; n++)
+			data.get(tables[n]);
+		return tables;
+	}
+
+	/**
+	 * Writes the tables to the cache directory.
+	 * The tables are first written to a temporary file that then replaces the old cache file atomically,
+	 * so concurrent readers never see partially written tables.
+	 * Errors are reported in the log but otherwise ignored; as a result, the tables are not cached.
+	 * @param tables Array containing table1, table2 and table3.
+	 */
+	public static void write(int[][] tables) {
+		Path dir = getCacheDirectory();
+		Path temp = null;
+		try {
+			Files.createDirectories(dir);
+			temp = Files.createTempFile(dir, FILENAME, ".tmp");
+
+			int size = tables[0].length;
+			ByteBuffer buffer = ByteBuffer.allocate(toBufferSize(getFileSize(size)));
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(size);
+			IntBuffer data = buffer.asIntBuffer();
+			for (int n = 0; n < 3; n++)
+				data.put(tables[n]);
+			buffer.rewind();
+
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				channel.force(true);
+			}
+
+			Path file = dir.resolve(FILENAME);
+			try {
+				Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		catch (IOException e) {
+			IJ.log("Unable to save Danielsson tables to cache directory " + dir + ": " + e.getMessage());
+			if (temp != null)
+				FileUtils.tryDelete(temp);
+		}
+	}
+
+	/**
+	 * Adds the entries of the given tables to the cache.
+	 * The cache is locked, re-read and merged with the given tables before writing, so that entries that
+	 * concurrent ImageJ instances have added to the cache in the meantime are not lost.
+	 * @param tables Array containing table1, table2 and table3.
+	 */
+	public static void update(int[][] tables) {
+		FileLock lock = lock();
+		try {
+			write(merge(tables, readCache()));
+		}
+		finally {
+			unlock(lock);
+		}
+	}
+
+	/**
+	 * Acquires exclusive lock that must be held while updating the cache file.
+	 * Blocks until the lock is available.
+	 * The lock must be released using unlock.
+	 * @return The lock, or null if the lock could not be acquired. In that case the cache is updated without locking.
+	 */
+	private static FileLock lock() {
+		Path dir = getCacheDirectory();
+		FileChannel channel = null;
+		try {
+			Files.createDirectories(dir);
+			channel = FileChannel.open(dir.resolve(LOCK_FILENAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			return channel.lock();
+		}
+		catch (IOException e) {
+			if (channel != null) {
+				try {
+					channel.close();
+				}
+				catch (IOException ignore) {
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Releases lock acquired using lock.
+	 * @param lock The lock. Can be null.
+	 */
+	private static void unlock(FileLock lock) {
+		if (lock != null) {
+			try {
+				// Closing the channel releases the lock, too.
+				lock.channel().close();
+			}
+			catch (IOException ignore) {
+			}
+		}
+	}
+
+	/**
+	 * Creates empty tables.
+	 */
+	private static int[][] empty() {
+		return new int[][] { new int[0], new int[0], new int[0] };
+	}
+}
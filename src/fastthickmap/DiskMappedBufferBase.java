@@ -4,6 +4,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
@@ -14,6 +17,8 @@ import java.util.ArrayList;
  * This class is inspired by
  * https://vanillajava.blogspot.com/2011/12/using-memory-mapped-file-for-huge.html
  * 
+ * The mappings are released immediately when the buffer is closed, so the buffer must not be
+ * accessed from any thread after close() has been called.
  * 
  * @author miettinen_a
  *
@@ -22,11 +27,79 @@ public abstract class DiskMappedBufferBase implements AutoCloseable {
 
 	/**
 	 * The file is mapped in chunks of this size. This size must be less than 2 gigabytes.
-	 * NOTE: The MAPPING_SIZE must be divisible by sizeof(short). If accessor methods are added for other
-	 * types than short, then MAPPING_SIZE must be divisible by size of all the types. 
+	 * NOTE: The MAPPING_SIZE must be divisible by size of all the types that have accessor methods
+	 * (currently short, int, float and long). 
 	 */
 	private static final int MAPPING_SIZE = 1 << 30;
 	
+	/**
+	 * Releases a file mapping.
+	 */
+	private interface Unmapper {
+		void unmap(MappedByteBuffer buffer) throws Exception;
+	}
+	
+	/**
+	 * Unmapper suitable for the current Java runtime, or null if mappings cannot be released explicitly.
+	 */
+	private static final Unmapper unmapper = createUnmapper();
+	
+	/**
+	 * Creates unmapper that works in the current Java runtime.
+	 * Java does not have public API for releasing file mappings, so this relies on internal APIs.
+	 * @return The unmapper, or null if the internal APIs are not available.
+	 */
+	private static Unmapper createUnmapper() {
+		// Java 9 and later
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			Object unsafe = theUnsafe.get(null);
+			return new Unmapper() {
+				@Override
+				public void unmap(MappedByteBuffer buffer) throws Exception {
+					invokeCleaner.invoke(unsafe, buffer);
+				}
+			};
+		} catch (Exception e) {
+			// Not available, try the Java 8 way.
+		}
+		
+		// Java 8
+		try {
+			Method cleanerMethod = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+			Method cleanMethod = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			return new Unmapper() {
+				@Override
+				public void unmap(MappedByteBuffer buffer) throws Exception {
+					Object cleaner = cleanerMethod.invoke(buffer);
+					if (cleaner != null)
+						cleanMethod.invoke(cleaner);
+				}
+			};
+		} catch (Exception e) {
+			// Not available. The mappings are released when the buffers are garbage collected.
+			return null;
+		}
+	}
+	
+	/**
+	 * Releases the given mapping immediately if possible. Otherwise the mapping is released
+	 * when the buffer is garbage collected.
+	 * @param buffer
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		if (unmapper != null) {
+			try {
+				unmapper.unmap(buffer);
+			} catch (Exception e) {
+				// Fall back to garbage collection.
+			}
+		}
+	}
+	
 	private RandomAccessFile rafile;
 	
 	private ArrayList<MappedByteBuffer> buffers;
@@ -101,7 +174,86 @@ public abstract class DiskMappedBufferBase implements AutoCloseable {
 	}
 	
 	/**
-	 * Reads short from file. The read is made from byte position index * 2 = index * sizeof(short). 
+	 * Gets view of the buffer where the given byte resides. The position of the view is set to the given byte,
+	 * and the view ends at the end of the buffer. The view can be used without affecting other threads.
+	 * @param byteIndex
+	 * @param elementSize Size of the values to be accessed. At least one value must fit into the view.
+	 * @return
+	 */
+	protected ByteBuffer getView(long byteIndex, int elementSize) {
+		MappedByteBuffer buffer = getBuffer(byteIndex);
+		int bufferOffset = getOffset(byteIndex);
+		if (buffer.limit() - bufferOffset < elementSize)
+			throw new IndexOutOfBoundsException("Access past the end of the file.");
+
+		ByteBuffer view = buffer.duplicate();
+		view.position(bufferOffset);
+		return view;
+	}
+	
+	/**
+	 * Gets size of the file in bytes.
+	 * @return
+	 */
+	public long size() {
+		if (buffers.isEmpty())
+			return 0;
+		return (long)(buffers.size() - 1) * MAPPING_SIZE + buffers.get(buffers.size() - 1).limit();
+	}
+	
+	/**
+	 * Loads the given byte range of the file into physical memory, so that it can be accessed without
+	 * waiting for the disk. Call this before accessing a large range of the file in order to let the operating
+	 * system read the range sequentially. The range is clamped to the file.
+	 * The call blocks until the range has been loaded, so it should be made from a thread that is reserved for I/O.
+	 * The range is loaded with MappedByteBuffer.load, which asks the operating system to read the whole range
+	 * ahead before touching its pages. In runtimes where slices of mapped buffers cannot be loaded (Java 8 to 12)
+	 * this does nothing.
+	 * @param byteIndex
+	 * @param length
+	 */
+	public void prefetch(long byteIndex, long length) {
+		long end = Math.min(byteIndex + length, size());
+		byteIndex = Math.max(byteIndex, 0);
+		while (byteIndex < end) {
+			// Load the part of the range that is in the current chunk.
+			ByteBuffer view = getView(byteIndex, 1);
+			int n = (int) Math.min(end - byteIndex, view.remaining());
+			view.limit(view.position() + n);
+			try {
+				((MappedByteBuffer) view.slice()).load();
+			} catch (UnsupportedOperationException | ClassCastException e) {
+				// The slice does not know that it is mapped. Prefetching is only a hint, so it can be skipped.
+				return;
+			}
+			byteIndex += n;
+		}
+	}
+	
+	/**
+	 * Reads count bytes from file to array dst, starting from position offset of the array.
+	 * The read is made from byte position index.
+	 * The bulk read methods may read over the boundaries of the mapped chunks.
+	 * @param index
+	 * @param dst
+	 * @param offset
+	 * @param count
+	 */
+	public void readBytes(long index, byte[] dst, int offset, int count) {
+		while (count > 0) {
+			// The read may continue to the next buffer.
+			ByteBuffer view = getView(index, 1);
+			int n = Math.min(count, view.remaining());
+			view.get(dst, offset, n);
+
+			offset += n;
+			count -= n;
+			index += n;
+		}
+	}
+
+	/**
+	 * Reads short from file. The read is made from byte position index * 2 = index * sizeof(short).
 	 * @param index
 	 * @return
 	 */
@@ -110,6 +262,89 @@ public abstract class DiskMappedBufferBase implements AutoCloseable {
 		return getBuffer(byteIndex).getShort(getOffset(byteIndex));
 	}
 	
+	/**
+	 * Reads count shorts from file to array dst, starting from position offset of the array.
+	 * The read is made from byte position index * 2 = index * sizeof(short).
+	 * @param index
+	 * @param dst
+	 * @param offset
+	 * @param count
+	 */
+	public void readShorts(long index, short[] dst, int offset, int count) {
+		long byteIndex = index * 2;
+		while (count > 0) {
+			ByteBuffer view = getView(byteIndex, 2);
+			int n = Math.min(count, view.remaining() / 2);
+			view.asShortBuffer().get(dst, offset, n);
+
+			offset += n;
+			count -= n;
+			byteIndex += 2L * n;
+		}
+	}
+	
+	/**
+	 * Reads int from file. The read is made from byte position index * 4 = index * sizeof(int).
+	 * @param index
+	 * @return
+	 */
+	public int readInt(long index) {
+		long byteIndex = index * 4;
+		return getBuffer(byteIndex).getInt(getOffset(byteIndex));
+	}
+	
+	/**
+	 * Reads count ints from file to array dst, starting from position offset of the array.
+	 * The read is made from byte position index * 4 = index * sizeof(int).
+	 * @param index
+	 * @param dst
+	 * @param offset
+	 * @param count
+	 */
+	public void readInts(long index, int[] dst, int offset, int count) {
+		long byteIndex = index * 4;
+		while (count > 0) {
+			ByteBuffer view = getView(byteIndex, 4);
+			int n = Math.min(count, view.remaining() / 4);
+			view.asIntBuffer().get(dst, offset, n);
+
+			offset += n;
+			count -= n;
+			byteIndex += 4L * n;
+		}
+	}
+	
+	/**
+	 * Reads float from file. The read is made from byte position index * 4 = index * sizeof(float).
+	 * @param index
+	 * @return
+	 */
+	public float readFloat(long index) {
+		long byteIndex = index * 4;
+		return getBuffer(byteIndex).getFloat(getOffset(byteIndex));
+	}
+	
+	/**
+	 * Reads count floats from file to array dst, starting from position offset of the array.
+	 * The read is made from byte position index * 4 = index * sizeof(float).
+	 * @param index
+	 * @param dst
+	 * @param offset
+	 * @param count
+	 */
+	public void readFloats(long index, float[] dst, int offset, int count) {
+		long byteIndex = index * 4;
+		while (count > 0) {
+			ByteBuffer view = getView(byteIndex, 4);
+			int n = Math.min(count, view.remaining() / 4);
+			view.asFloatBuffer().get(dst, offset, n);
+
+			offset += n;
+			count -= n;
+			byteIndex += 4L * n;
+		}
+	}
+	
 	/**
 	 * Reads long from file. The read is made from byte position index * 8 = index * sizeof(long).
 	 * @param index
@@ -120,13 +355,175 @@ public abstract class DiskMappedBufferBase implements AutoCloseable {
 		return getBuffer(byteIndex).getLong(getOffset(byteIndex));
 	}
 	
+	/**
+	 * Reads count longs from file to array dst, starting from position offset of the array.
+	 * The read is made from byte position index * 8 = index * sizeof(long).
+	 * @param index
+	 * @param dst
+	 * @param offset
+	 * @param count
+	 */
+	public void readLongs(long index, long[] dst, int offset, int count) {
+		long byteIndex = index * 8;
+		while (count > 0) {
+			ByteBuffer view = getView(byteIndex, 8);
+			int n = Math.min(count, view.remaining() / 8);
+			view.asLongBuffer().get(dst, offset, n);
+
+			offset += n;
+			count -= n;
+			byteIndex += 8L * n;
+		}
+	}
+	
+	/**
+	 * Creates cursor that reads the file sequentially, starting from the given byte position.
+	 * @param byteIndex
+	 * @return
+	 */
+	public Cursor cursor(long byteIndex) {
+		return new Cursor(byteIndex);
+	}
+	
+	/**
+	 * Reads values from consecutive positions of the file. The cursor keeps a view of the current mapped chunk,
+	 * so sequential reads do not need to locate the chunk for each value.
+	 * The values need not be aligned to their size. Each thread must use its own cursor.
+	 */
+	public class Cursor {
+		
+		/**
+		 * View of the current chunk. Its position is the current position of the cursor.
+		 */
+		private ByteBuffer view;
+		
+		/**
+		 * Byte position of the start of the view in the file.
+		 */
+		private long viewStart;
+		
+		/**
+		 * Temporary space for values that are split between two chunks.
+		 */
+		private ByteBuffer split = ByteBuffer.allocate(8);
+		
+		protected Cursor(long byteIndex) {
+			seek(byteIndex);
+		}
+		
+		/**
+		 * Moves the cursor to the given byte position.
+		 * @param byteIndex
+		 */
+		public void seek(long byteIndex) {
+			int bufferIndex = getBufferIndex(byteIndex);
+			if (bufferIndex < buffers.size() && getOffset(byteIndex) <= buffers.get(bufferIndex).limit()) {
+				view = buffers.get(bufferIndex).duplicate();
+				view.position(getOffset(byteIndex));
+			} else {
+				// Positioned at or past the end of the file.
+				view = ByteBuffer.allocate(0);
+			}
+			viewStart = byteIndex - view.position();
+		}
+		
+		/**
+		 * Gets the current byte position of the cursor.
+		 * @return
+		 */
+		public long getPosition() {
+			return viewStart + view.position();
+		}
+		
+		/**
+		 * Gets buffer where a value of the given size can be read from, and advances the cursor past the value.
+		 */
+		private ByteBuffer next(int size) {
+			if (view.remaining() >= size)
+				return view;
+			
+			if (view.remaining() <= 0) {
+				// Move to the next chunk.
+				seek(getPosition());
+				if (view.remaining() >= size)
+					return view;
+				if (view.remaining() <= 0)
+					throw new IndexOutOfBoundsException("Access past the end of the file.");
+			}
+			
+			// The value is split between two chunks.
+			split.clear();
+			for (int i = 0; i < size; i++)
+				split.put(next(1).get());
+			split.flip();
+			return split;
+		}
+		
+		public byte readByte() {
+			return next(1).get();
+		}
+		
+		public short readShort() {
+			return next(2).getShort();
+		}
+		
+		public int readInt() {
+			return next(4).getInt();
+		}
+		
+		public float readFloat() {
+			return next(4).getFloat();
+		}
+		
+		public long readLong() {
+			return next(8).getLong();
+		}
+		
+		/**
+		 * Moves the cursor forward by the given count of bytes.
+		 * @param count
+		 */
+		public void skip(long count) {
+			if (count <= view.remaining())
+				view.position(view.position() + (int) count);
+			else
+				seek(getPosition() + count);
+		}
+		
+		/**
+		 * Reads count bytes to array dst, starting from position offset of the array.
+		 */
+		public void readBytes(byte[] dst, int offset, int count) {
+			if (view.remaining() >= count) {
+				view.get(dst, offset, count);
+			} else {
+				long pos = getPosition();
+				DiskMappedBufferBase.this.readBytes(pos, dst, offset, count);
+				seek(pos + count);
+			}
+		}
+		
+		/**
+		 * Reads count shorts to array dst, starting from position offset of the array.
+		 */
+		public void readShorts(short[] dst, int offset, int count) {
+			if (view.remaining() >= 2L * count) {
+				view.asShortBuffer().get(dst, offset, count);
+				view.position(view.position() + 2 * count);
+			} else {
+				for (int i = 0; i < count; i++)
+					dst[offset + i] = readShort();
+			}
+		}
+	}
+	
 	@Override
 	public void close() throws IOException {
-        buffers.clear();
-        rafile.close();
-        
-        // NOTE: The mappings remain open until they get garbage collected.
-        // Let's try to induce collection here.
-        System.gc();
-    }
+		// Release the mappings so that the file can be deleted immediately.
+		// If that is not possible, the mappings remain open until they get garbage collected.
+		for (MappedByteBuffer buffer : buffers)
+			unmap(buffer);
+		buffers.clear();
+		rafile.close();
+	}
 }
@@ -2,6 +2,7 @@ package fastthickmap;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Disk-mapped buffer that provides read and write access to the underlying data.
@@ -14,6 +15,121 @@ public class DiskMappedWriteBuffer extends DiskMappedBufferBase {
 		super(filename, false, length);
 	}
 	
+	/**
+	 * Writes count bytes from array src, starting from position offset of the array, to file.
+	 * The write is made to byte position index.
+	 * The bulk write methods may write over the boundaries of the mapped chunks.
+	 * @param index
+	 * @param src
+	 * @param offset
+	 * @param count
+	 */
+	public void writeBytes(long index, byte[] src, int offset, int count) {
+		while (count > 0) {
+			// The write may continue to the next buffer.
+			ByteBuffer view = getView(index, 1);
+			int n = Math.min(count, view.remaining());
+			view.put(src, offset, n);
+
+			offset += n;
+			count -= n;
+			index += n;
+		}
+	}
+	
+	/**
+	 * Writes short to file. The write is made to byte position index * 2 = index * sizeof(short).
+	 * @param index
+	 * @return
+	 */
+	public void writeShort(long index, short value) {
+		long byteIndex = index * 2;
+		getBuffer(byteIndex).putShort(getOffset(byteIndex), value);
+	}
+	
+	/**
+	 * Writes count shorts from array src, starting from position offset of the array, to file.
+	 * The write is made to byte position index * 2 = index * sizeof(short).
+	 * @param index
+	 * @param src
+	 * @param offset
+	 * @param count
+	 */
+	public void writeShorts(long index, short[] src, int offset, int count) {
+		long byteIndex = index * 2;
+		while (count > 0) {
+			ByteBuffer view = getView(byteIndex, 2);
+			int n = Math.min(count, view.remaining() / 2);
+			view.asShortBuffer().put(src, offset, n);
+
+			offset += n;
+			count -= n;
+			byteIndex += 2L * n;
+		}
+	}
+	
+	/**
+	 * Writes int to file. The write is made to byte position index * 4 = index * sizeof(int).
+	 * @param index
+	 * @return
+	 */
+	public void writeInt(long index, int value) {
+		long byteIndex = index * 4;
+		getBuffer(byteIndex).putInt(getOffset(byteIndex), value);
+	}
+	
+	/**
+	 * Writes count ints from array src, starting from position offset of the array, to file.
+	 * The write is made to byte position index * 4 = index * sizeof(int).
+	 * @param index
+	 * @param src
+	 * @param offset
+	 * @param count
+	 */
+	public void writeInts(long index, int[] src, int offset, int count) {
+		long byteIndex = index * 4;
+		while (count > 0) {
+			ByteBuffer view = getView(byteIndex, 4);
+			int n = Math.min(count, view.remaining() / 4);
+			view.asIntBuffer().put(src, offset, n);
+
+			offset += n;
+			count -= n;
+			byteIndex += 4L * n;
+		}
+	}
+	
+	/**
+	 * Writes float to file. The write is made to byte position index * 4 = index * sizeof(float).
+	 * @param index
+	 * @return
+	 */
+	public void writeFloat(long index, float value) {
+		long byteIndex = index * 4;
+		getBuffer(byteIndex).putFloat(getOffset(byteIndex), value);
+	}
+	
+	/**
+	 * Writes count floats from array src, starting from position offset of the array, to file.
+	 * The write is made to byte position index * 4 = index * sizeof(float).
+	 * @param index
+	 * @param src
+	 * @param offset
+	 * @param count
+	 */
+	public void writeFloats(long index, float[] src, int offset, int count) {
+		long byteIndex = index * 4;
+		while (count > 0) {
+			ByteBuffer view = getView(byteIndex, 4);
+			int n = Math.min(count, view.remaining() / 4);
+			view.asFloatBuffer().put(src, offset, n);
+
+			offset += n;
+			count -= n;
+			byteIndex += 4L * n;
+		}
+	}
+	
 	/**
 	 * Writes long to file. The write is made to byte position index * 8 = index * sizeof(long).
 	 * @param index
@@ -23,5 +139,26 @@ public class DiskMappedWriteBuffer extends DiskMappedBufferBase {
 		long byteIndex = index * 8;
 		getBuffer(byteIndex).putLong(getOffset(byteIndex), value);
 	}
+	
+	/**
+	 * Writes count longs from array src, starting from position offset of the array, to file.
+	 * The write is made to byte position index * 8 = index * sizeof(long).
+	 * @param index
+	 * @param src
+	 * @param offset
+	 * @param count
+	 */
+	public void writeLongs(long index, long[] src, int offset, int count) {
+		long byteIndex = index * 8;
+		while (count > 0) {
+			ByteBuffer view = getView(byteIndex, 8);
+			int n = Math.min(count, view.remaining() / 8);
+			view.asLongBuffer().put(src, offset, n);
+
+			offset += n;
+			count -= n;
+			byteIndex += 8L * n;
+		}
+	}
 
 }
@@ -11,13 +11,15 @@ public class FileUtils {
 
 	/**
 	 * Creates folders in the path of a given file if they don't exist. Does not
-	 * create the file, only directories.
+	 * create the file, only directories. Nothing is done if the file name does not
+	 * contain a directory, e.g. for a bare relative file name.
 	 * 
 	 * @throws IOException
 	 */
 	public static void createFoldersFor(String filename) throws IOException {
-		Path p = Paths.get(filename);
-		Files.createDirectories(p.getParent());
+		Path parent = Paths.get(filename).getParent();
+		if (parent != null)
+			Files.createDirectories(parent);
 	}
 
 	/**
@@ -0,0 +1,62 @@
+package fastthickmap;
+
+/**
+ * Image that stores 32-bit integer values.
+ * @author miettinen_a
+ *
+ */
+public class ImageI32 extends ImageBase {
+
+	public ImageI32(Vec3i dimensions) {
+		super(dimensions);
+		
+		slices = new int[depth()][width() * height()];
+	}
+	
+	/**
+	 * Stores image data.
+	 */
+	private int[][] slices;
+	
+	/**
+	 * Gets one slice of the image as array.
+	 * The array is accessed like array[y*width + x].
+	 * @param z
+	 * @return
+	 */
+	public int[] getSlice(int z) {
+		return slices[z];
+	}
+
+	/**
+	 * Gets value of pixel.
+	 * @param slices
+	 * @param dimensions
+	 * @param pos
+	 * @return
+	 */
+	public int get(Vec3i pos)
+	{
+		return slices[pos.z][pos.y * width() + pos.x];
+	}
+	
+	public int get(int x, int y, int z) {
+		return slices[z][y * width() + x];
+	}
+
+	/**
+	 * Sets value of pixel.
+	 * @param slices
+	 * @param dimensions
+	 * @param pos
+	 * @param value
+	 */
+	public void set(Vec3i pos, int value)
+	{
+		slices[pos.z][pos.y * width() + pos.x] = value;
+	}
+	
+	public void set(int x, int y, int z, int value) {
+		slices[z][y * width() + x] = value;
+	}
+}
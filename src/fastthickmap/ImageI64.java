@@ -49,4 +49,12 @@ public class ImageI64 extends ImageBase {
 	public void set(int x, int y, int z, long value) {
 		slices[z][y * width() + x] = value;
 	}
+
+	/**
+	 * Gets array containing pixels of slice z.
+	 * Pixel (x, y) of the slice is at index y * width() + x.
+	 */
+	public long[] getSlice(int z) {
+		return slices[z];
+	}
 }
@@ -1,6 +1,7 @@
 package fastthickmap;
 
 import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.LongAccumulator;
 import java.util.function.DoubleBinaryOperator;
 
 /**
@@ -88,4 +89,126 @@ public class ImageUtils {
 		});
 	}
 	
+	/**
+	 * Calculates maximum value in the given image.
+	 * @param img
+	 * @return
+	 */
+	public static int max(ImageI32 img) throws InterruptedException {
+		
+		LongAccumulator acc = new LongAccumulator(Math::max, Integer.MIN_VALUE);
+		
+		Loop.withIndex(0, img.depth(), new Loop.Each() {
+			
+			@Override
+			public void run(long zl) {
+				
+				int z = (int)zl;
+				
+				int myMax = Integer.MIN_VALUE;
+				int[] slice = img.getSlice(z);
+				for(int n = 0; n < slice.length; n++)
+				{
+					int val = slice[n];
+					if(val > myMax)
+						myMax = val;
+				}
+				
+				acc.accumulate(myMax);
+			}
+		});
+		
+		return (int)acc.get();
+	}
+	
+	/**
+	 * Sets all pixels in the image to given value.
+	 * @param img
+	 * @param val
+	 */
+	public static void setValue(ImageI32 img, int val) throws InterruptedException {
+		
+		Loop.withIndex(0, img.depth(), new Loop.Each() {
+			
+			@Override
+			public void run(long zl) {
+				
+				int z = (int)zl;
+				
+				int[] slice = img.getSlice(z);
+				for(int n = 0; n < slice.length; n++)
+					slice[n] = val;
+			}
+		});
+	}
+	
+	/**
+	 * Rounds pixel values of a float image to the nearest integers and stores them in an integer image.
+	 * The images must have the same dimensions.
+	 * @param in
+	 * @param out
+	 */
+	public static void round(Image in, ImageI32 out) throws InterruptedException {
+		
+		Loop.withIndex(0, in.depth(), new Loop.Each() {
+			
+			@Override
+			public void run(long zl) {
+				
+				int z = (int)zl;
+				
+				float[] src = in.getSlice(z);
+				int[] dst = out.getSlice(z);
+				for(int n = 0; n < src.length; n++)
+					dst[n] = Math.round(src[n]);
+			}
+		});
+	}
+	
+	/**
+	 * Copies pixel values of an integer image to a float image.
+	 * The images must have the same dimensions.
+	 * @param in
+	 * @param out
+	 */
+	public static void convert(ImageI32 in, Image out) throws InterruptedException {
+		
+		Loop.withIndex(0, in.depth(), new Loop.Each() {
+			
+			@Override
+			public void run(long zl) {
+				
+				int z = (int)zl;
+				
+				int[] src = in.getSlice(z);
+				float[] dst = out.getSlice(z);
+				for(int n = 0; n < src.length; n++)
+					dst[n] = src[n];
+			}
+		});
+	}
+	
+	/**
+	 * Copies pixel values of a 64-bit integer image to a float image.
+	 * The images must have the same dimensions.
+	 * @param in
+	 * @param out
+	 */
+	public static void convert(ImageI64 in, Image out) throws InterruptedException {
+		
+		Loop.withIndex(0, in.depth(), new Loop.Each() {
+			
+			@Override
+			public void run(long zl) {
+				
+				int z = (int)zl;
+				
+				long[] src = in.getSlice(z);
+				float[] dst = out.getSlice(z);
+				for(int n = 0; n < src.length; n++)
+					dst[n] = src[n];
+			}
+		});
+	}
+	
 }
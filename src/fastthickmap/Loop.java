@@ -3,10 +3,12 @@ package fastthickmap;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Provides simple parallel for each loop. This is from StackOverflow:
@@ -24,9 +26,18 @@ public class Loop {
 
 	private static ExecutorService executor = Executors.newFixedThreadPool(CPUs);
 
+	/**
+	 * Runs body for each index in [start, stop[ in parallel.
+	 * The method does not return before all the calls to body have finished, also if an exception is thrown
+	 * or the calling thread is interrupted, so that the caller may release resources used by the body
+	 * (e.g. close memory mapped files).
+	 */
 	public static void withIndex(long start, long stop, final Each body) throws InterruptedException {
 		long chunksize = (stop - start + CPUs - 1) / CPUs;
 
+		// If the loop is aborted, the remaining indices are skipped.
+		final AtomicBoolean aborted = new AtomicBoolean(false);
+		
 		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
 		for (long i = start; i < stop;) {
 			final long lo = i;
@@ -36,7 +47,7 @@ public class Loop {
 	
 				@Override
 				public Void call() throws Exception {
-					for (long i = lo; i < hi; i++)
+					for (long i = lo; i < hi && !aborted.get(); i++)
 						body.run(i);
 					return null;
 				}
@@ -44,17 +55,40 @@ public class Loop {
 			});
 		}
 		
-		List<Future<Void>> results = executor.invokeAll(tasks);
+		// The tasks are not cancelled, so each of them counts down the latch once it has finished.
+		final CountDownLatch finished = new CountDownLatch(tasks.size());
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (Callable<Void> task : tasks) {
+			results.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try {
+						return task.call();
+					} finally {
+						finished.countDown();
+					}
+				}
+			}));
+		}
 		
-		for(Future<Void> result : results) {
-			try {
-				result.get();
+		boolean completed = false;
+		try {
+			for(Future<Void> result : results) {
+				try {
+					result.get();
+				}
+				catch(ExecutionException e) {
+					if(e.getCause() != null && e.getCause().getMessage() != null)
+						throw new RuntimeException("Not all tasks completed succesfully. " + e.getCause().getMessage());
+					else
+						throw new RuntimeException("Not all tasks completed succesfully. " + e.getMessage());
+				}
 			}
-			catch(ExecutionException e) {
-				if(e.getCause() != null && e.getCause().getMessage() != null)
-					throw new RuntimeException("Not all tasks completed succesfully. " + e.getCause().getMessage());
-				else
-					throw new RuntimeException("Not all tasks completed succesfully. " + e.getMessage());
+			completed = true;
+		} finally {
+			if (!completed) {
+				aborted.set(true);
+				awaitUninterruptibly(finished);
 			}
 		}
 		
@@ -77,4 +111,22 @@ public class Loop {
 //
 //		latch.await();
 	}
+	
+	/**
+	 * Waits until the latch has counted down to zero, even if the current thread is interrupted.
+	 * The interrupted status of the thread is restored.
+	 */
+	private static void awaitUninterruptibly(CountDownLatch latch) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				latch.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
 }
@@ -19,6 +19,17 @@ public class MathUtils {
 		return value;
 	}
 
+	/**
+	 * Clamps the given value to range [lower, upper].
+	 */
+	public static long clamp(long value, long lower, long upper) {
+		if (value < lower)
+			return lower;
+		else if (value > upper)
+			return upper;
+		return value;
+	}
+
 	/**
 	 * Clamps each component i of the vector to range [lower.i, upper.i].
 	 */
@@ -28,6 +39,16 @@ public class MathUtils {
 		value.z = clamp(value.z, lower.z, upper.z);
 	}
 
+	/**
+	 * Tests if the given non-negative value can be represented as a sum of three squares of integers.
+	 * By Legendre's three-square theorem, this is the case unless the value is of the form 4^a (8b + 7).
+	 */
+	public static boolean isSumOfThreeSquares(int value) {
+		while (value > 0 && value % 4 == 0)
+			value /= 4;
+		return value % 8 != 7;
+	}
+
 	/**
 	 * Returns largest integer value whose square is less than given value.
 	 */
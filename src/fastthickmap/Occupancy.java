@@ -0,0 +1,302 @@
+package fastthickmap;
+
+/**
+ * Stores information about which x-directional pixel rows of an image contain foreground pixels,
+ * and the extent of the foreground pixels in each row.
+ * This information is used to skip processing of empty regions of the image.
+ *
+ * @author miettinen_a
+ *
+ */
+public class Occupancy {
+
+	/**
+	 * Dimensions of the image.
+	 */
+	private Vec3i dimensions;
+
+	/**
+	 * Minimum and maximum x-coordinate of foreground pixels in each row.
+	 * Index of row (y, z) is z * height + y. If the row is empty, min > max.
+	 */
+	private int[] rowMinX;
+	private int[] rowMaxX;
+
+	/**
+	 * Minimum and maximum x-coordinate of foreground pixels in each z-slice.
+	 */
+	private int[] sliceMinX;
+	private int[] sliceMaxX;
+
+	/**
+	 * Minimum and maximum x-coordinate of foreground pixels in each xz-plane.
+	 */
+	private int[] planeMinX;
+	private int[] planeMaxX;
+
+	/**
+	 * Bounding box of the foreground pixels. If there are no foreground pixels, min > max.
+	 */
+	private Vec3i min;
+	private Vec3i max;
+
+	/**
+	 * Constructor. Marks all rows empty.
+	 * Use setRow to mark non-empty rows and call update before accessing the data.
+	 * @param dimensions
+	 */
+	public Occupancy(Vec3i dimensions) {
+		this.dimensions = new Vec3i(dimensions);
+
+		int rowCount = dimensions.y * dimensions.z;
+		rowMinX = new int[rowCount];
+		rowMaxX = new int[rowCount];
+		for (int n = 0; n < rowCount; n++) {
+			rowMinX[n] = dimensions.x;
+			rowMaxX[n] = -1;
+		}
+
+		sliceMinX = new int[dimensions.z];
+		sliceMaxX = new int[dimensions.z];
+		planeMinX = new int[dimensions.y];
+		planeMaxX = new int[dimensions.y];
+		min = new Vec3i(0, 0, 0);
+		max = new Vec3i(-1, -1, -1);
+	}
+
+	/**
+	 * Creates occupancy information where all pixels of an image of given size are marked as foreground.
+	 * Processing an image using this occupancy does not skip anything.
+	 * @param dimensions
+	 * @return
+	 */
+	public static Occupancy all(Vec3i dimensions) {
+		Occupancy occupancy = new Occupancy(dimensions);
+		for (int z = 0; z < dimensions.z; z++) {
+			for (int y = 0; y < dimensions.y; y++)
+				occupancy.setRow(y, z, 0, dimensions.x - 1);
+		}
+		occupancy.update();
+		return occupancy;
+	}
+
+	/**
+	 * Creates occupancy information where non-zero pixels of the given image are foreground.
+	 * @param img
+	 * @return
+	 */
+	public static Occupancy of(ImageI32 img) throws InterruptedException {
+
+		Occupancy occupancy = new Occupancy(img.getDimensions());
+		int w = img.width();
+
+		Loop.withIndex(0, img.depth(), new Loop.Each() {
+
+			@Override
+			public void run(long zl) {
+
+				int z = (int)zl;
+
+				int[] slice = img.getSlice(z);
+				for (int y = 0; y < img.height(); y++) {
+					int minX = w;
+					int maxX = -1;
+					for (int x = 0; x < w; x++) {
+						if (slice[y * w + x] != 0) {
+							if (minX > x)
+								minX = x;
+							maxX = x;
+						}
+					}
+					occupancy.setRow(y, z, minX, maxX);
+				}
+			}
+		});
+
+		occupancy.update();
+		return occupancy;
+	}
+
+	/**
+	 * Creates occupancy information where each row is non-empty if any row within distance r in y- and z-directions
+	 * is non-empty. The x-extent of foreground pixels is grown by r, too.
+	 * @param r
+	 * @return
+	 */
+	public Occupancy dilate(int r) {
+
+		Occupancy result = new Occupancy(dimensions);
+
+		for (int z = 0; z < dimensions.z; z++) {
+			for (int y = 0; y < dimensions.y; y++) {
+				int minX = dimensions.x;
+				int maxX = -1;
+				for (int zz = Math.max(0, z - r); zz <= Math.min(dimensions.z - 1, z + r); zz++) {
+					for (int yy = Math.max(0, y - r); yy <= Math.min(dimensions.y - 1, y + r); yy++) {
+						if (!isRowEmpty(yy, zz)) {
+							minX = Math.min(minX, getRowMinX(yy, zz));
+							maxX = Math.max(maxX, getRowMaxX(yy, zz));
+						}
+					}
+				}
+				if (minX <= maxX)
+					result.setRow(y, z, Math.max(0, minX - r), Math.min(dimensions.x - 1, maxX + r));
+			}
+		}
+
+		result.update();
+		return result;
+	}
+
+	/**
+	 * Sets the extent of foreground pixels in row (y, z).
+	 * Different rows may be set from different threads simultaneously.
+	 * Call update after all rows have been set.
+	 * @param y
+	 * @param z
+	 * @param minX Minimum x-coordinate of foreground pixels in the row.
+	 * @param maxX Maximum x-coordinate of foreground pixels in the row. Set to a value less than minX if the row is empty.
+	 */
+	public void setRow(int y, int z, int minX, int maxX) {
+		int n = z * dimensions.y + y;
+		rowMinX[n] = minX;
+		rowMaxX[n] = maxX;
+	}
+
+	/**
+	 * Updates per-slice, per-plane and bounding box information from the per-row information.
+	 */
+	public void update() {
+
+		for (int z = 0; z < dimensions.z; z++) {
+			sliceMinX[z] = dimensions.x;
+			sliceMaxX[z] = -1;
+		}
+		for (int y = 0; y < dimensions.y; y++) {
+			planeMinX[y] = dimensions.x;
+			planeMaxX[y] = -1;
+		}
+		min = new Vec3i(dimensions);
+		max = new Vec3i(-1, -1, -1);
+
+		for (int z = 0; z < dimensions.z; z++) {
+			for (int y = 0; y < dimensions.y; y++) {
+				int n = z * dimensions.y + y;
+				if (rowMinX[n] <= rowMaxX[n]) {
+					sliceMinX[z] = Math.min(sliceMinX[z], rowMinX[n]);
+					sliceMaxX[z] = Math.max(sliceMaxX[z], rowMaxX[n]);
+					planeMinX[y] = Math.min(planeMinX[y], rowMinX[n]);
+					planeMaxX[y] = Math.max(planeMaxX[y], rowMaxX[n]);
+
+					min.x = Math.min(min.x, rowMinX[n]);
+					min.y = Math.min(min.y, y);
+					min.z = Math.min(min.z, z);
+					max.x = Math.max(max.x, rowMaxX[n]);
+					max.y = Math.max(max.y, y);
+					max.z = Math.max(max.z, z);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets minimum corner of the bounding box of the foreground pixels.
+	 * @return
+	 */
+	public Vec3i getMin() {
+		return new Vec3i(min);
+	}
+
+	/**
+	 * Gets maximum corner of the bounding box of the foreground pixels.
+	 * @return
+	 */
+	public Vec3i getMax() {
+		return new Vec3i(max);
+	}
+
+	/**
+	 * Tests if there are no foreground pixels at all.
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return min.x > max.x;
+	}
+
+	/**
+	 * Gets minimum x-coordinate of foreground pixels in row (y, z).
+	 * @param y
+	 * @param z
+	 * @return
+	 */
+	public int getRowMinX(int y, int z) {
+		return rowMinX[z * dimensions.y + y];
+	}
+
+	/**
+	 * Gets maximum x-coordinate of foreground pixels in row (y, z). If the row is empty, the return value is less than getRowMinX(y, z).
+	 * @param y
+	 * @param z
+	 * @return
+	 */
+	public int getRowMaxX(int y, int z) {
+		return rowMaxX[z * dimensions.y + y];
+	}
+
+	/**
+	 * Tests if the x-directional row (y, z) does not contain any foreground pixels.
+	 * @param y
+	 * @param z
+	 * @return
+	 */
+	public boolean isRowEmpty(int y, int z) {
+		int n = z * dimensions.y + y;
+		return rowMinX[n] > rowMaxX[n];
+	}
+
+	/**
+	 * Tests if the pixel line that goes through (x, y, z) in dimension dim does not contain any foreground pixels.
+	 * @param dim
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return
+	 */
+	public boolean isLineEmpty(int dim, int x, int y, int z) {
+		switch (dim) {
+		case 0:
+			return isRowEmpty(y, z);
+		case 1:
+			return x < sliceMinX[z] || x > sliceMaxX[z];
+		case 2:
+			return x < planeMinX[y] || x > planeMaxX[y];
+		default:
+			throw new IllegalArgumentException("Unsupported dimension.");
+		}
+	}
+
+	/**
+	 * Tests if the given block does not contain any foreground pixels.
+	 * @param pos Position of the block.
+	 * @param size Size of the block.
+	 * @return
+	 */
+	public boolean isBlockEmpty(Vec3i pos, Vec3i size) {
+		int endX = Math.min(pos.x + size.x, dimensions.x) - 1;
+		int endY = Math.min(pos.y + size.y, dimensions.y) - 1;
+		int endZ = Math.min(pos.z + size.z, dimensions.z) - 1;
+
+		if (pos.x > max.x || endX < min.x || pos.y > max.y || endY < min.y || pos.z > max.z || endZ < min.z)
+			return true;
+
+		for (int z = Math.max(pos.z, min.z); z <= Math.min(endZ, max.z); z++) {
+			for (int y = Math.max(pos.y, min.y); y <= Math.min(endY, max.y); y++) {
+				int n = z * dimensions.y + y;
+				if (rowMinX[n] <= endX && rowMaxX[n] >= pos.x && rowMinX[n] <= rowMaxX[n])
+					return false;
+			}
+		}
+
+		return true;
+	}
+}
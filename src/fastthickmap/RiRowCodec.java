@@ -0,0 +1,207 @@
+package fastthickmap;
+
+import java.io.IOException;
+
+/**
+ * Compact encoding of one row of ri items, used for the temporary ri data files
+ * of the multi-block radius calculation.
+ *
+ * Each item is an int that packs offset (dx, dy) from the pixel where the item
+ * is stored to the center of the sphere, dx in the high 16 bits and dy in the
+ * low 16 bits. The offsets are smaller than the radius of the sphere, so they
+ * are usually small numbers and are stored as zig-zag encoded variable length
+ * integers (7 bits per byte). Runs of pixels without items are run-length
+ * encoded.
+ *
+ * Encoded row consists of big endian int containing length of the rest of the
+ * record in bytes, varint count of items in the row, and tokens. Each token is
+ * a varint h followed by data:
+ * if the lowest bit of h is 0, the token denotes (h >>> 1) + 1 pixels without
+ * items;
+ * if the lowest bit of h is 1, the token denotes one pixel with (h >>> 1) + 1
+ * items, and is followed by zig-zag varint dx and dy of each item.
+ *
+ * @author miettinen_a
+ *
+ */
+public class RiRowCodec {
+
+	/**
+	 * Size of the record length field at the beginning of each encoded row.
+	 */
+	public static final int HEADER_SIZE = 4;
+
+	/**
+	 * Calculates the maximum size of encoded row.
+	 *
+	 * @param pixelCount Count of pixels in the row.
+	 * @param itemCount  Count of items in the row.
+	 * @return
+	 */
+	public static int getMaxEncodedSize(int pixelCount, int itemCount) {
+		// A varint of an int takes at most 5 bytes, and a zig-zag encoded short at
+		// most 3 bytes.
+		return HEADER_SIZE + 5 + 5 * pixelCount + 6 * itemCount;
+	}
+
+	/**
+	 * Encodes one row.
+	 *
+	 * @param offsets    Items of pixel i are items[offsets[i]] to
+	 *                   items[offsets[i + 1] - 1]. May be null if there are no
+	 *                   items in the row.
+	 * @param items      Items of the row.
+	 * @param pixelCount Count of pixels in the row.
+	 * @param dst        Array where the encoded row is placed. Must have space for
+	 *                   getMaxEncodedSize bytes.
+	 * @param pos        Position in dst where the encoded row starts.
+	 * @return Count of bytes written to dst.
+	 */
+	public static int encode(int[] offsets, int[] items, int pixelCount, byte[] dst, int pos) {
+		int start = pos;
+		pos += HEADER_SIZE;
+
+		int itemCount = offsets != null ? offsets[pixelCount] - offsets[0] : 0;
+		pos = putVarInt(dst, pos, itemCount);
+
+		int x = 0;
+		while (x < pixelCount) {
+			int count = offsets != null ? offsets[x + 1] - offsets[x] : 0;
+			if (count <= 0) {
+				int runEnd = x + 1;
+				while (runEnd < pixelCount && (offsets == null || offsets[runEnd + 1] == offsets[runEnd]))
+					runEnd++;
+				pos = putVarInt(dst, pos, (runEnd - x - 1) << 1);
+				x = runEnd;
+			} else {
+				pos = putVarInt(dst, pos, ((count - 1) << 1) | 1);
+				for (int n = offsets[x]; n < offsets[x + 1]; n++) {
+					int item = items[n];
+					pos = putVarInt(dst, pos, zigZag(item >> 16));
+					pos = putVarInt(dst, pos, zigZag((short) item));
+				}
+				x++;
+			}
+		}
+
+		int length = pos - start - HEADER_SIZE;
+		dst[start] = (byte) (length >>> 24);
+		dst[start + 1] = (byte) (length >>> 16);
+		dst[start + 2] = (byte) (length >>> 8);
+		dst[start + 3] = (byte) length;
+
+		return pos - start;
+	}
+
+	/**
+	 * Gets length of encoded row, excluding the header, from the header at the
+	 * given position.
+	 */
+	public static int getRecordLength(byte[] src, int pos) {
+		return ((src[pos] & 0xff) << 24) | ((src[pos + 1] & 0xff) << 16) | ((src[pos + 2] & 0xff) << 8)
+				| (src[pos + 3] & 0xff);
+	}
+
+	/**
+	 * Decodes one row.
+	 *
+	 * @param src        Encoded data, not including the header.
+	 * @param pos        Position of the encoded data in src.
+	 * @param length     Length of the encoded data, as returned by
+	 *                   getRecordLength.
+	 * @param pixelCount Count of pixels in the row.
+	 * @param offsets    At output, offsets of items of each pixel. Length must be
+	 *                   pixelCount + 1.
+	 * @return Items of the row.
+	 * @throws IOException If the data is not valid encoded row.
+	 */
+	public static int[] decode(byte[] src, int pos, int length, int pixelCount, int[] offsets) throws IOException {
+		int end = pos + length;
+
+		// The varints are read without bounds checks. Invalid data throws
+		// ArrayIndexOutOfBoundsException that is converted to IOException below.
+		try {
+			long v = getVarInt(src, pos);
+			pos = (int) (v >>> 32);
+			int itemCount = (int) v;
+			if (itemCount < 0 || itemCount > length / 2)
+				throw new IOException("Invalid item count in ri data.");
+
+			int[] items = new int[itemCount];
+			int n = 0;
+			int x = 0;
+			offsets[0] = 0;
+			while (x < pixelCount && pos < end) {
+				v = getVarInt(src, pos);
+				pos = (int) (v >>> 32);
+				int h = (int) v;
+				int count = (h >>> 1) + 1;
+				if ((h & 1) == 0) {
+					if (count > pixelCount - x)
+						throw new IOException("Invalid run length in ri data.");
+					for (int i = 0; i < count; i++)
+						offsets[++x] = n;
+				} else {
+					if (count > itemCount - n)
+						throw new IOException("Invalid item count in ri data.");
+					for (int i = 0; i < count; i++) {
+						v = getVarInt(src, pos);
+						int dx = unZigZag((int) v);
+						v = getVarInt(src, (int) (v >>> 32));
+						int dy = unZigZag((int) v);
+						pos = (int) (v >>> 32);
+						items[n++] = (dx << 16) | (dy & 0xffff);
+					}
+					offsets[++x] = n;
+				}
+			}
+
+			if (x != pixelCount || pos != end || n != itemCount)
+				throw new IOException("Inconsistent ri data.");
+
+			return items;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Truncated ri data.");
+		}
+	}
+
+	private static int zigZag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+
+	private static int unZigZag(int v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Writes v as variable length integer, 7 bits per byte, lowest bits first.
+	 *
+	 * @return Position after the written bytes.
+	 */
+	private static int putVarInt(byte[] dst, int pos, int v) {
+		while ((v & ~0x7f) != 0) {
+			dst[pos++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		dst[pos++] = (byte) v;
+		return pos;
+	}
+
+	/**
+	 * Reads variable length integer written by putVarInt.
+	 *
+	 * @return The value in the low 32 bits and position after the read bytes in
+	 *         the high 32 bits.
+	 */
+	private static long getVarInt(byte[] src, int pos) {
+		int v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = src[pos++];
+			v |= (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0 && shift < 35);
+		return ((long) pos << 32) | (v & 0xffffffffl);
+	}
+}
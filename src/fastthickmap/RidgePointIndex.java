@@ -0,0 +1,168 @@
+package fastthickmap;
+
+import java.util.Arrays;
+
+/**
+ * Index that finds the ridge point at given location in constant time, e.g. for looking up the squared radius of
+ * the sphere whose center is at given location.
+ * The index covers whole pixel rows in a range of y- and z-coordinates, e.g. the rows of one block and the rows
+ * around it where the centers of the spheres of the block may be.
+ * For each row, the index stores one bit for each pixel that tells if there is a point in that pixel,
+ * and for each group of 64 pixels the index of the first point of the group in the RidgePoints object.
+ * The index of a point is then found by counting the set bits before the point in its group.
+ * This takes 12 bytes per 64 pixels, i.e. much less than a dense image of squared radii.
+ *
+ * @author miettinen_a
+ *
+ */
+public class RidgePointIndex {
+
+	/**
+	 * The indexed points.
+	 */
+	private final RidgePoints points;
+
+	/**
+	 * The indexed rows and slices are [startY, endY[ and [startZ, endZ[.
+	 */
+	private final int startY;
+	private final int endY;
+	private final int startZ;
+	private final int endZ;
+
+	/**
+	 * Count of 64-pixel groups in each row.
+	 */
+	private final int groupsPerRow;
+
+	/**
+	 * bits[z - startZ][(y - startY) * groupsPerRow + x / 64] bit x % 64 tells if there is a point at (x, y, z).
+	 */
+	private final long[][] bits;
+
+	/**
+	 * offsets[z - startZ][(y - startY) * groupsPerRow + g] is the index of the first point in pixels
+	 * [64 * g, 64 * g + 63] of row (y, z), or the index of the next point if there are no points in the group.
+	 */
+	private final int[][] offsets;
+
+	/**
+	 * Constructor. Builds index of points in rows [startY, endY[ of slices [startZ, endZ[.
+	 * The points must not be changed while the index is in use.
+	 * @param points The points to index.
+	 * @param startY The first row to index.
+	 * @param endY One past the last row to index.
+	 * @param startZ The first slice to index.
+	 * @param endZ One past the last slice to index.
+	 */
+	public RidgePointIndex(RidgePoints points, int startY, int endY, int startZ, int endZ) throws InterruptedException {
+		if (startY < 0 || endY > points.height() || startY > endY || startZ < 0 || endZ > points.depth() || startZ > endZ)
+			throw new IllegalArgumentException("The indexed rows must be inside the image.");
+
+		this.points = points;
+		this.startY = startY;
+		this.endY = endY;
+		this.startZ = startZ;
+		this.endZ = endZ;
+		groupsPerRow = (points.width() + 63) / 64;
+
+		long groupCount = (long) (endY - startY) * groupsPerRow;
+		if (groupCount > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The slices of the image are too large to index.");
+
+		bits = new long[endZ - startZ][];
+		offsets = new int[endZ - startZ][];
+
+		Loop.withIndex(startZ, endZ, new Loop.Each() {
+			@Override
+			public void run(long zl) {
+				int z = (int) zl;
+				long[] sliceBits = new long[(int) groupCount];
+				int[] sliceOffsets = new int[(int) groupCount];
+
+				for (int y = startY; y < endY; y++) {
+					int rowGroup = (y - startY) * groupsPerRow;
+					int end = points.getRowEnd(y, z);
+					int n = points.getRowStart(y, z);
+					for (int g = 0; g < groupsPerRow; g++) {
+						// The points are sorted by x, so the points of the group are consecutive.
+						sliceOffsets[rowGroup + g] = n;
+						long word = 0;
+						int groupEnd = 64 * (g + 1);
+						while (n < end && points.getX(n, z) < groupEnd) {
+							word |= 1L << points.getX(n, z);
+							n++;
+						}
+						sliceBits[rowGroup + g] = word;
+					}
+				}
+
+				bits[z - startZ] = sliceBits;
+				offsets[z - startZ] = sliceOffsets;
+			}
+		});
+	}
+
+	/**
+	 * Gets squared radius of point at (x, y, z), or zero if there is no point at that location.
+	 * The location must be in the indexed rows.
+	 */
+	public int getR2(int x, int y, int z) {
+		int iz = z - startZ;
+		int group = (y - startY) * groupsPerRow + (x >>> 6);
+		long word = bits[iz][group];
+		long bit = 1L << x;
+		if ((word & bit) == 0)
+			return 0;
+		return points.getR2(offsets[iz][group] + Long.bitCount(word & (bit - 1)), z);
+	}
+
+	/**
+	 * Finds the distinct squared radii of the indexed points.
+	 * @return The squared radii in ascending order.
+	 */
+	public int[] getDistinctR2() throws InterruptedException {
+		// The points of the indexed rows are consecutive in each slice. Each slice is sorted separately, and
+		// the results are combined.
+		int[][] sliceValues = new int[endZ - startZ][];
+		Loop.withIndex(startZ, endZ, new Loop.Each() {
+			@Override
+			public void run(long zl) {
+				int z = (int) zl;
+				int start = points.getRowStart(startY, z);
+				int end = startY < endY ? points.getRowEnd(endY - 1, z) : start;
+				int[] values = new int[end - start];
+				for (int n = start; n < end; n++)
+					values[n - start] = points.getR2(n, z);
+				sliceValues[z - startZ] = distinct(values);
+			}
+		});
+
+		long count = 0;
+		for (int[] values : sliceValues)
+			count += values.length;
+		if (count > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("There are too many distinct squared radii.");
+
+		int[] all = new int[(int) count];
+		int n = 0;
+		for (int[] values : sliceValues) {
+			System.arraycopy(values, 0, all, n, values.length);
+			n += values.length;
+		}
+		return distinct(all);
+	}
+
+	/**
+	 * Sorts the given array, and returns array containing the distinct values in it.
+	 */
+	private static int[] distinct(int[] values) {
+		Arrays.sort(values);
+		int n = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (n == 0 || values[i] != values[n - 1])
+				values[n++] = values[i];
+		}
+		return Arrays.copyOf(values, n);
+	}
+}
@@ -0,0 +1,330 @@
+package fastthickmap;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Sparse list of distance ridge points, i.e. centers of locally maximal spheres, and their squared radii.
+ * The points are stored in primitive arrays, one set of arrays for each z-slice.
+ * In each slice, the points are sorted by y and then by x, and the start of each row in the arrays is indexed.
+ * Usually only a few percent of the pixels are ridge points, so this takes much less memory than a full ridge image.
+ *
+ * @author miettinen_a
+ *
+ */
+public class RidgePoints extends ImageBase {
+
+	/**
+	 * x-coordinates of the points in each slice.
+	 */
+	private int[][] xs;
+
+	/**
+	 * Squared radii of the points in each slice.
+	 */
+	private int[][] r2s;
+
+	/**
+	 * rowStarts[z][y] is the index of the first point of row y in slice z.
+	 * rowStarts[z][height()] is the count of points in slice z.
+	 */
+	private int[][] rowStarts;
+
+	/**
+	 * Constructor. Creates empty list.
+	 * @param dimensions Dimensions of the image where the points are in.
+	 */
+	public RidgePoints(Vec3i dimensions) {
+		super(dimensions);
+
+		xs = new int[depth()][];
+		r2s = new int[depth()][];
+		rowStarts = new int[depth()][];
+		int[] empty = new int[0];
+		int[] emptyRows = new int[height() + 1];
+		for (int z = 0; z < depth(); z++) {
+			xs[z] = empty;
+			r2s[z] = empty;
+			rowStarts[z] = emptyRows;
+		}
+	}
+
+	/**
+	 * Sets points of slice z.
+	 * Different slices may be set from different threads simultaneously.
+	 * @param z Slice index.
+	 * @param builder Builder containing the points of the slice.
+	 */
+	public void setSlice(int z, SliceBuilder builder) {
+		if (builder.y != height())
+			throw new IllegalArgumentException("All rows of the slice have not been added.");
+
+		xs[z] = Arrays.copyOf(builder.xs, builder.count);
+		r2s[z] = Arrays.copyOf(builder.r2s, builder.count);
+		rowStarts[z] = builder.rowStarts.clone();
+	}
+
+	/**
+	 * Removes all points of slice z, e.g. after the slice has been written to a file.
+	 * @param z Slice index.
+	 */
+	public void clearSlice(int z) {
+		xs[z] = new int[0];
+		r2s[z] = new int[0];
+		rowStarts[z] = new int[height() + 1];
+	}
+
+	/**
+	 * Gets index of the first point in row (y, z).
+	 * Points of the row are in indices [getRowStart(y, z), getRowEnd(y, z)[ of slice z.
+	 */
+	public int getRowStart(int y, int z) {
+		return rowStarts[z][y];
+	}
+
+	/**
+	 * Gets index one past the last point in row (y, z).
+	 */
+	public int getRowEnd(int y, int z) {
+		return rowStarts[z][y + 1];
+	}
+
+	/**
+	 * Gets count of points in slice z.
+	 */
+	public int getCount(int z) {
+		return rowStarts[z][height()];
+	}
+
+	/**
+	 * Gets total count of points.
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int z = 0; z < depth(); z++)
+			count += getCount(z);
+		return count;
+	}
+
+	/**
+	 * Gets x-coordinate of point with given index in slice z.
+	 */
+	public int getX(int index, int z) {
+		return xs[z][index];
+	}
+
+	/**
+	 * Gets squared radius of point with given index in slice z.
+	 */
+	public int getR2(int index, int z) {
+		return r2s[z][index];
+	}
+
+	/**
+	 * Sets squared radius of point with given index in slice z.
+	 */
+	public void setR2(int index, int z, int R2) {
+		r2s[z][index] = R2;
+	}
+
+	/**
+	 * Calculates maximum squared radius of all points, or zero if there are no points.
+	 */
+	public int max() throws InterruptedException {
+		LongAccumulator acc = new LongAccumulator(Math::max, 0);
+
+		Loop.withIndex(0, depth(), new Loop.Each() {
+
+			@Override
+			public void run(long zl) {
+				int z = (int)zl;
+				int myMax = 0;
+				int[] slice = r2s[z];
+				for (int n = 0; n < getCount(z); n++) {
+					if (slice[n] > myMax)
+						myMax = slice[n];
+				}
+				acc.accumulate(myMax);
+			}
+		});
+
+		return (int)acc.get();
+	}
+
+	/**
+	 * Creates list of the non-zero pixels of the given ridge image.
+	 * @param ridge Ridge image.
+	 * @param occupancy Pixel rows that are empty in occupancy are not read.
+	 */
+	public static RidgePoints of(ImageI32 ridge, Occupancy occupancy) throws InterruptedException {
+		RidgePoints points = new RidgePoints(ridge.getDimensions());
+
+		ThreadLocal<SliceBuilder> builderStore = new ThreadLocal<SliceBuilder>() {
+			@Override
+			protected SliceBuilder initialValue() {
+				return new SliceBuilder(ridge.height());
+			}
+		};
+
+		Loop.withIndex(0, ridge.depth(), new Loop.Each() {
+
+			@Override
+			public void run(long zl) {
+				int z = (int)zl;
+				int w = ridge.width();
+				int[] slice = ridge.getSlice(z);
+
+				SliceBuilder builder = builderStore.get();
+				builder.clear();
+				for (int y = 0; y < ridge.height(); y++) {
+					for (int x = occupancy.getRowMinX(y, z); x <= occupancy.getRowMaxX(y, z); x++) {
+						int R2 = slice[y * w + x];
+						if (R2 != 0)
+							builder.add(x, R2);
+					}
+					builder.endRow();
+				}
+				points.setSlice(z, builder);
+			}
+		});
+
+		return points;
+	}
+
+	/**
+	 * Writes the points to the given image. Other pixels of the image are not changed.
+	 * @param img Image whose dimensions equal to the dimensions of this list.
+	 */
+	public void toImage(ImageI32 img) throws InterruptedException {
+		Loop.withIndex(0, depth(), new Loop.Each() {
+
+			@Override
+			public void run(long zl) {
+				int z = (int)zl;
+				int w = img.width();
+				int[] slice = img.getSlice(z);
+				for (int y = 0; y < height(); y++) {
+					for (int n = getRowStart(y, z); n < getRowEnd(y, z); n++)
+						slice[y * w + xs[z][n]] = r2s[z][n];
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes header of ridge point file. The header must be followed by all the slices in increasing z order,
+	 * written using writeSlice.
+	 * The file format is (big endian): int width, int height, int depth, and for each slice:
+	 * int count, int[height + 1] row starts, int[count] x-coordinates, int[count] squared radii.
+	 */
+	public void writeHeader(DataOutputStream out) throws IOException {
+		out.writeInt(width());
+		out.writeInt(height());
+		out.writeInt(depth());
+	}
+
+	/**
+	 * Writes points of slice z to ridge point file. See writeHeader.
+	 */
+	public void writeSlice(int z, DataOutputStream out) throws IOException {
+		out.writeInt(getCount(z));
+		for (int y = 0; y <= height(); y++)
+			out.writeInt(rowStarts[z][y]);
+		for (int n = 0; n < getCount(z); n++)
+			out.writeInt(xs[z][n]);
+		for (int n = 0; n < getCount(z); n++)
+			out.writeInt(r2s[z][n]);
+	}
+
+	/**
+	 * Reads ridge point file written using writeHeader and writeSlice.
+	 * @param filename
+	 */
+	public static RidgePoints read(String filename) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)))) {
+			int w = in.readInt();
+			int h = in.readInt();
+			int d = in.readInt();
+			if (w < 0 || h < 0 || d < 0)
+				throw new IOException("Invalid dimensions in ridge point file " + filename + ".");
+
+			RidgePoints points = new RidgePoints(new Vec3i(w, h, d));
+			for (int z = 0; z < d; z++) {
+				int count = in.readInt();
+				if (count < 0)
+					throw new IOException("Invalid point count in ridge point file " + filename + ".");
+
+				int[] starts = new int[h + 1];
+				for (int y = 0; y <= h; y++)
+					starts[y] = in.readInt();
+				int[] sliceXs = new int[count];
+				for (int n = 0; n < count; n++)
+					sliceXs[n] = in.readInt();
+				int[] sliceR2s = new int[count];
+				for (int n = 0; n < count; n++)
+					sliceR2s[n] = in.readInt();
+
+				points.xs[z] = sliceXs;
+				points.r2s[z] = sliceR2s;
+				points.rowStarts[z] = starts;
+			}
+			return points;
+		}
+	}
+
+	/**
+	 * Collects points of one slice. Points must be added in increasing x order, and endRow must be called
+	 * after each row, including empty rows. The builder can be re-used for multiple slices by calling clear.
+	 */
+	public static class SliceBuilder {
+
+		private int[] xs = new int[16];
+		private int[] r2s = new int[16];
+		private int[] rowStarts;
+		private int count = 0;
+		private int y = 0;
+
+		/**
+		 * Constructor.
+		 * @param height Height of the image.
+		 */
+		public SliceBuilder(int height) {
+			rowStarts = new int[height + 1];
+		}
+
+		/**
+		 * Removes all points from the builder.
+		 */
+		public void clear() {
+			count = 0;
+			y = 0;
+		}
+
+		/**
+		 * Adds a point to the current row.
+		 */
+		public void add(int x, int R2) {
+			if (count >= xs.length) {
+				int newSize = xs.length * 2;
+				xs = Arrays.copyOf(xs, newSize);
+				r2s = Arrays.copyOf(r2s, newSize);
+			}
+			xs[count] = x;
+			r2s[count] = R2;
+			count++;
+		}
+
+		/**
+		 * Finishes the current row and moves to the next row.
+		 */
+		public void endRow() {
+			y++;
+			rowStarts[y] = count;
+		}
+	}
+}
@@ -40,6 +40,72 @@ public class Round_Squared_Distance_Ridge_ implements PlugInFilter {
 		
 	}
 
+	/**
+	 * Integer version of roundSquaredRidge(Image).
+	 * @param dmap2
+	 * @throws InterruptedException
+	 */
+	public static void roundSquaredRidge(ImageI32 dmap2) throws InterruptedException {
+		roundSquaredRidge(dmap2, Occupancy.all(dmap2.getDimensions()));
+	}
+	
+	/**
+	 * Integer version of roundSquaredRidge(Image) that skips pixel rows that do not contain non-zero pixels.
+	 * @param dmap2
+	 * @param occupancy Occupancy of the non-zero pixels of dmap2.
+	 * @throws InterruptedException
+	 */
+	public static void roundSquaredRidge(ImageI32 dmap2, Occupancy occupancy) throws InterruptedException {
+		
+		AtomicInteger progress = new AtomicInteger(0);
+		Loop.withIndex(0, dmap2.depth(), new Loop.Each() {
+
+			@Override
+			public void run(long zl) {
+				
+				int z = (int)zl;
+				
+				int[] slice = dmap2.getSlice(z);
+				for (int y = 0; y < dmap2.height(); y++) {
+					int start = y * dmap2.width();
+					for (int x = occupancy.getRowMinX(y, z); x <= occupancy.getRowMaxX(y, z); x++) {
+						long v = Math.round(Math.sqrt(slice[start + x]));
+						slice[start + x] = (int)Math.min(v * v, Integer.MAX_VALUE);
+					}
+				}
+
+				IJ.showProgress(progress.incrementAndGet(), dmap2.depth());
+			}
+		});
+		
+	}
+
+	/**
+	 * Version of roundSquaredRidge(Image) that rounds squared radii of distance ridge points.
+	 * @param centers
+	 * @throws InterruptedException
+	 */
+	public static void roundSquaredRidge(RidgePoints centers) throws InterruptedException {
+
+		AtomicInteger progress = new AtomicInteger(0);
+		Loop.withIndex(0, centers.depth(), new Loop.Each() {
+
+			@Override
+			public void run(long zl) {
+
+				int z = (int)zl;
+
+				for (int n = 0; n < centers.getCount(z); n++) {
+					long v = Math.round(Math.sqrt(centers.getR2(n, z)));
+					centers.setR2(n, z, (int)Math.min(v * v, Integer.MAX_VALUE));
+				}
+
+				IJ.showProgress(progress.incrementAndGet(), centers.depth());
+			}
+		});
+
+	}
+
 	private ImagePlus iplus;
 
 	@Override
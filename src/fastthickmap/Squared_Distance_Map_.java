@@ -1,5 +1,14 @@
 package fastthickmap;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import ij.*;
@@ -46,65 +55,186 @@ public class Squared_Distance_Map_ implements PlugInFilter {
 	
 	
 	
-	private static boolean remove(float d1, float d2, float df, float x1, float x2, float xf)
+	/**
+	 * Value that denotes infinite distance in the squared distance map.
+	 * Pixels in images that do not contain any background pixels are set to this value.
+	 */
+	public static final int INFINITY = Integer.MAX_VALUE;
+	
+	/**
+	 * Pixels in 64-bit distance maps of images that do not contain any background pixels are set to this value.
+	 */
+	public static final long INFINITY64 = Long.MAX_VALUE;
+	
+	/**
+	 * Calculates upper bound for the squared distances in the distance map of an image of given dimensions,
+	 * i.e. the squared length of the diagonal of the image.
+	 * @param dimensions
+	 * @return
+	 */
+	public static long getMaxSquaredDistance(Vec3i dimensions) {
+		long w = dimensions.x - 1;
+		long h = dimensions.y - 1;
+		long d = dimensions.z - 1;
+		return w * w + h * h + d * d;
+	}
+	
+	/**
+	 * Tests if squared distance map of an image of given dimensions can be stored in an ImageI32.
+	 * If not, use squaredDistanceMap(Image, ImageI64, float, float).
+	 * @param dimensions
+	 * @return
+	 */
+	public static boolean fitsImageI32(Vec3i dimensions) {
+		return getMaxSquaredDistance(dimensions) < INFINITY;
+	}
+	
+	private static boolean remove(long d1, long d2, long df, long x1, long x2, long xf)
 	{
-		float a = x2 - x1;
-		float b = xf - x2;
-		float c = xf - x1;
+		long a = x2 - x1;
+		long b = xf - x2;
+		long c = xf - x1;
 
-		float value = (c * d2 - b * d1 - a * df - a * b * c);
+		long value = (c * d2 - b * d1 - a * df - a * b * c);
 
 		return value > 0;
 	}
 
-	private static float calcD(float gl, float hl, float iw)
+	private static long calcD(long gl, long hl, long iw)
 	{
-		float d1 = gl + (hl - iw) * (hl - iw);
+		long d1 = gl + (hl - iw) * (hl - iw);
 		return d1;
 	}
 	
+	/**
+	 * Converts squared distance calculated using 64-bit arithmetic to 32-bit value that is stored in the distance map.
+	 * @param d
+	 * @return
+	 */
+	private static int toStorage(long d)
+	{
+		if (d >= INFINITY)
+			throw new IllegalArgumentException("Squared distance exceeds " + (INFINITY - 1) + ". Use the 64-bit version of the squared distance map for this image.");
+		return (int)d;
+	}
+	
+	/**
+	 * Count of neighbouring pixel rows that are processed together in the y- and z-directional passes.
+	 * The rows are copied to a contiguous buffer before processing in order to avoid cache misses
+	 * caused by accessing the image in large strides.
+	 */
+	private static final int TILE_WIDTH = 16;
+	
+	/**
+	 * Count of z-slices that are processed together in the last pass when the distance ridge is extracted
+	 * in the same pass. The slab should be thin so that its slices are still in the cache when the ridge is
+	 * extracted, but thick enough to give work to all processors.
+	 */
+	private static final int RIDGE_SLAB_DEPTH = Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+	
 	/**
 	 * Helper for distance map calculation.
-	 * Processes one row in dimension d whose start point is idx.
+	 * Processes one row that is stored contiguously in array f, starting from index offset.
 	 * Optimized version that does not store nearest object point for each dmap point.
-	 * g and h are temporary images whose size must be output.dimension(d) x 1 x 1
-	 * @param d
-	 * @param idx
-	 * @param output
+	 * g and h are temporary arrays whose size must be at least n.
+	 * The calculations are made using 64-bit arithmetic, so they do not overflow for any squared distance that fits
+	 * into the 32-bit output.
+	 * @param f
+	 * @param offset
+	 * @param n
 	 * @param g
 	 * @param h
 	 */
-	private static void voronoi(int d, Vec3i idx, Image output, float[] g, float[] h)
+	private static void voronoi(int[] f, int offset, int n, long[] g, int[] h)
 	{
-		int nd = output.getDimensions().get(d);
-
 		int l = -1;
 
-		for (int i = 0; i < nd; i++)
+		for (int i = 0; i < n; i++)
+		{
+			int di = f[offset + i];
+
+			if (di < INFINITY)
+			{
+				if (l < 1)
+				{
+					l++;
+					g[l] = di;
+					h[l] = i;
+				}
+				else
+				{
+					while ((l >= 1) && remove(g[l - 1], g[l], di, h[l - 1], h[l], i))
+					{
+						l--;
+					}
+					l++;
+					g[l] = di;
+					h[l] = i;
+				}
+			}
+		}
+
+		if (l == -1)
+		{
+			return;
+		}
+
+		int ns = l;
+
+		l = 0;
+
+		for (int i = 0; i < n; i++)
 		{
-			idx.set(d, i);
+			long d1 = calcD(g[l], h[l], i);
+
+			while (l < ns)
+			{
+				long d2 = calcD(g[l + 1], h[l + 1], i);
+
+				// then compare d1 and d2
+				if (d1 <= d2)
+				{
+					break;
+				}
+				l++;
+				d1 = d2;
+			}
+
+			f[offset + i] = toStorage(d1);
+		}
 
-			float di = output.get(idx);
+	}
+	
+	/**
+	 * 64-bit version of voronoi(int[], int, int, long[], int[]).
+	 * The input and output values are stored in 64 bits, so the output is not limited to 32 bits.
+	 * The calculations do not overflow if n times the largest squared distance is less than Long.MAX_VALUE / 4.
+	 */
+	private static void voronoi(long[] f, int offset, int n, long[] g, int[] h)
+	{
+		int l = -1;
 
-			float iw = (float)i;
+		for (int i = 0; i < n; i++)
+		{
+			long di = f[offset + i];
 
-			if (di < Float.MAX_VALUE)
+			if (di < INFINITY64)
 			{
 				if (l < 1)
 				{
 					l++;
 					g[l] = di;
-					h[l] = iw;
+					h[l] = i;
 				}
 				else
 				{
-					while ((l >= 1) && remove(g[l - 1], g[l], di, h[l - 1], h[l], iw))
+					while ((l >= 1) && remove(g[l - 1], g[l], di, h[l - 1], h[l], i))
 					{
 						l--;
 					}
 					l++;
 					g[l] = di;
-					h[l] = iw;
+					h[l] = i;
 				}
 			}
 		}
@@ -118,15 +248,13 @@ public class Squared_Distance_Map_ implements PlugInFilter {
 
 		l = 0;
 
-		for (int i = 0; i < nd; i++)
+		for (int i = 0; i < n; i++)
 		{
-			float iw = (float)i;
-
-			float d1 = calcD(g[l], h[l], iw);
+			long d1 = calcD(g[l], h[l], i);
 
 			while (l < ns)
 			{
-				float d2 = calcD(g[l + 1], h[l + 1], iw);
+				long d2 = calcD(g[l + 1], h[l + 1], i);
 
 				// then compare d1 and d2
 				if (d1 <= d2)
@@ -136,75 +264,402 @@ public class Squared_Distance_Map_ implements PlugInFilter {
 				l++;
 				d1 = d2;
 			}
-			idx.set(d, i);
 
-			output.set(idx, d1);
+			f[offset + i] = d1;
 		}
 
 	}
 	
+	/**
+	 * Processes the x-directional rows of the distance map.
+	 * The rows are contiguous in the slice arrays so they are processed in place.
+	 * @param slices
+	 * @param occupancy Rows that do not contain foreground pixels are skipped. Pass null to process all rows.
+	 */
+	private static void processFirstDimension(ImageI32 slices, Occupancy occupancy) throws InterruptedException {
+		
+		int w = slices.width();
+		int h = slices.height();
+		int rowCount = h * slices.depth();
+		
+		ThreadLocal<long[]> g = new ThreadLocal<long[]>() {
+			@Override protected long[] initialValue() {
+				return new long[w];
+			}
+	    };
+				
+	    ThreadLocal<int[]> hh = new ThreadLocal<int[]>() {
+			@Override protected int[] initialValue() {
+				return new int[w];
+			}
+	    };
+	    
+	    AtomicInteger progress = new AtomicInteger(0);
+	    
+		Loop.withIndex(0, rowCount, new Loop.Each() {
+			
+			@Override
+			public void run(long n) {
+				
+				int y = (int)(n % h);
+				int z = (int)(n / h);
+				
+				if (occupancy == null || !occupancy.isRowEmpty(y, z))
+					voronoi(slices.getSlice(z), y * w, w, g.get(), hh.get());
+				
+				IJ.showProgress(progress.incrementAndGet(), rowCount);
+			}
+		});
+	}
 	
 	/**
-	 * Processing of one dimension of the distance map.
+	 * Calculates squared distance from each pixel of one row to the nearest background pixel in the same row.
+	 * Pixels whose value is in range [backgroundMin, backgroundMax] are background pixels.
+	 * The result is the same than what prepare followed by voronoi would produce for the row, but
+	 * the input values are read only once.
+	 * @param in
+	 * @param out
+	 * @param offset
+	 * @param n
+	 * @param backgroundMin
+	 * @param backgroundMax
+	 * @param occupancy If not null, extent of the foreground pixels in the row is recorded here.
+	 * @param y y-coordinate of the row, used only for recording the occupancy.
+	 * @param z z-coordinate of the row, used only for recording the occupancy.
+	 */
+	private static void binarizeAndDistance(float[] in, int[] out, int offset, int n, float backgroundMin, float backgroundMax, Occupancy occupancy, int y, int z)
+	{
+		// Forward pass: distance to the previous background pixel, or INFINITY if there is none.
+		// Background pixels (and only them) are set to zero.
+		int last = -1;
+		int minX = n;
+		int maxX = -1;
+		for (int i = 0; i < n; i++)
+		{
+			float v = in[offset + i];
+			if (v >= backgroundMin && v <= backgroundMax)
+			{
+				last = i;
+				out[offset + i] = 0;
+			}
+			else
+			{
+				out[offset + i] = last >= 0 ? i - last : INFINITY;
+				if (minX > i)
+					minX = i;
+				maxX = i;
+			}
+		}
+		
+		if (occupancy != null)
+			occupancy.setRow(y, z, minX, maxX);
+		
+		if (last < 0 || maxX < 0)
+			return; // No background in this row, all pixels are at infinite distance, or no foreground and all pixels are zero.
+		
+		// Backward pass: take distance to the next background pixel into account and square the result.
+		int next = -1;
+		for (int i = n - 1; i >= 0; i--)
+		{
+			int d = out[offset + i];
+			if (d == 0)
+			{
+				next = i;
+			}
+			else
+			{
+				if (next >= 0 && next - i < d)
+					d = next - i;
+				if (d < INFINITY)
+					out[offset + i] = toStorage((long)d * (long)d);
+			}
+		}
+	}
+	
+	/**
+	 * Binarizes the image and processes the x-directional rows of the distance map in one pass.
+	 * Pixels whose value is in range [backgroundMin, backgroundMax] are background pixels.
+	 * @param in
+	 * @param out
+	 * @param backgroundMin
+	 * @param backgroundMax
+	 * @param occupancy Extent of the foreground pixels in each row is recorded here.
+	 */
+	private static void prepareAndProcessFirstDimension(Image in, ImageI32 out, float backgroundMin, float backgroundMax, Occupancy occupancy) throws InterruptedException {
+		
+		int w = in.width();
+		int h = in.height();
+		int rowCount = h * in.depth();
+		
+		AtomicInteger progress = new AtomicInteger(0);
+		
+		Loop.withIndex(0, rowCount, new Loop.Each() {
+			
+			@Override
+			public void run(long n) {
+				
+				int y = (int)(n % h);
+				int z = (int)(n / h);
+				
+				binarizeAndDistance(in.getSlice(z), out.getSlice(z), y * w, w, backgroundMin, backgroundMax, occupancy, y, z);
+				
+				IJ.showProgress(progress.incrementAndGet(), rowCount);
+			}
+		});
+	}
+	
+	/**
+	 * Processes the y- or z-directional rows of the distance map.
+	 * Blocks of TILE_WIDTH x-adjacent rows are gathered into a contiguous buffer, processed,
+	 * and scattered back to the image.
 	 * @param slices
-	 * @param dimensions
-	 * @param dimension
+	 * @param dimension 1 or 2.
+	 * @param occupancy Tiles that do not contain foreground pixels are skipped. Pass null to process all tiles.
+	 */
+	private static void processTiledDimension(ImageI32 slices, int dimension, Occupancy occupancy) throws InterruptedException {
+		processTiledDimension(slices, dimension, occupancy, 0, dimension == 1 ? slices.depth() : slices.height(), null);
+	}
+	
+	/**
+	 * Processes the y- or z-directional rows of the distance map whose coordinate in the remaining dimension
+	 * (z for dimension 1 and y for dimension 2) is in range [otherStart, otherEnd[.
+	 * @param slices
+	 * @param dimension 1 or 2.
+	 * @param occupancy Tiles that do not contain foreground pixels are skipped. Pass null to process all tiles.
+	 * @param otherStart
+	 * @param otherEnd
+	 * @param present If not null, all squared distance values (except INFINITY) found in the processed rows are added to this set.
 	 */
-	private static void processDimension(Image slices, int dimension) throws InterruptedException {
+	private static void processTiledDimension(ImageI32 slices, int dimension, Occupancy occupancy, int otherStart, int otherEnd, BitSet present) throws InterruptedException {
 		
-		Vec3i reducedDimensions = slices.getDimensions();
-		reducedDimensions.set(dimension, 1);
-		int rowCount = (int)((long)reducedDimensions.x * (long)reducedDimensions.y * (long)reducedDimensions.z);
+		int w = slices.width();
+		int nd = slices.getDimension(dimension);
 		
-		int nd = (int)slices.getDimensions().get(dimension);
+		// The dimension that is neither x nor the processing dimension.
+		int otherCount = otherEnd - otherStart;
 		
+		int tilesPerRow = (w + TILE_WIDTH - 1) / TILE_WIDTH;
+		int tileCount = tilesPerRow * otherCount;
 		
-		// Parallel version
+		ThreadLocal<int[]> buffer = new ThreadLocal<int[]>() {
+			@Override protected int[] initialValue() {
+				return new int[TILE_WIDTH * nd];
+			}
+	    };
 		
-		ThreadLocal<float[]> g = new ThreadLocal<float[]>() {
-			@Override protected float[] initialValue() {
-				return new float[nd];
+		ThreadLocal<long[]> g = new ThreadLocal<long[]>() {
+			@Override protected long[] initialValue() {
+				return new long[nd];
 			}
 	    };
 				
-	    ThreadLocal<float[]> h = new ThreadLocal<float[]>() {
-			@Override protected float[] initialValue() {
-				return new float[nd];
+	    ThreadLocal<int[]> h = new ThreadLocal<int[]>() {
+			@Override protected int[] initialValue() {
+				return new int[nd];
+			}
+	    };
+		
+	    // Each thread collects the values to its own set, and the sets are combined at the end.
+	    List<BitSet> threadPresent = Collections.synchronizedList(new ArrayList<BitSet>());
+	    ThreadLocal<BitSet> presentStore = new ThreadLocal<BitSet>() {
+			@Override protected BitSet initialValue() {
+				BitSet result = new BitSet();
+				threadPresent.add(result);
+				return result;
 			}
 	    };
 		
 	    AtomicInteger progress = new AtomicInteger(0);
 	    
-		Loop.withIndex(0, rowCount, new Loop.Each() {
+		Loop.withIndex(0, tileCount, new Loop.Each() {
 			
 			@Override
 			public void run(long n) {
 				
-				Vec3i start = Image.indexToCoords(n, reducedDimensions);
-
-			    // Process the current row
-				voronoi(dimension, start, slices, g.get(), h.get());
+				int x0 = (int)(n % tilesPerRow) * TILE_WIDTH;
+				int other = otherStart + (int)(n / tilesPerRow);
+				int tw = Math.min(TILE_WIDTH, w - x0);
 				
-				IJ.showProgress(progress.incrementAndGet(), rowCount);
+				if (occupancy != null && isTileEmpty(occupancy, dimension, x0, tw, other)) {
+					IJ.showProgress(progress.incrementAndGet(), tileCount);
+					return;
+				}
+				
+				int[] buf = buffer.get();
+				
+				// Gather the rows to the buffer such that each row is contiguous.
+				for (int i = 0; i < nd; i++) {
+					int[] slice;
+					int start;
+					if (dimension == 1) {
+						slice = slices.getSlice(other);
+						start = i * w + x0;
+					}
+					else {
+						slice = slices.getSlice(i);
+						start = other * w + x0;
+					}
+					
+					for (int j = 0; j < tw; j++)
+						buf[j * nd + i] = slice[start + j];
+				}
+				
+				for (int j = 0; j < tw; j++)
+					voronoi(buf, j * nd, nd, g.get(), h.get());
+				
+				// Scatter the processed rows back to the image.
+				for (int i = 0; i < nd; i++) {
+					int[] slice;
+					int start;
+					if (dimension == 1) {
+						slice = slices.getSlice(other);
+						start = i * w + x0;
+					}
+					else {
+						slice = slices.getSlice(i);
+						start = other * w + x0;
+					}
+					
+					for (int j = 0; j < tw; j++)
+						slice[start + j] = buf[j * nd + i];
+				}
+				
+				if (present != null) {
+					BitSet myPresent = presentStore.get();
+					// Neighbouring pixels often have the same value, and the set is not updated for repeated values.
+					// That also skips the background.
+					int last = 0;
+					for (int i = 0; i < tw * nd; i++) {
+						int v = buf[i];
+						if (v != last && v < INFINITY) {
+							myPresent.set(v);
+							last = v;
+						}
+					}
+				}
+				
+				IJ.showProgress(progress.incrementAndGet(), tileCount);
 			}
 		});
 		
-		// Single-threaded version
-		/*
-		// Temporary buffer
-		float[] g = new float[nd];
-		float[] h = new float[nd];
-		
-		for (int n = 0; n < rowCount; n++)
-		{
-		    Vec3c start = Image.indexToCoords(n, reducedDimensions);
-
-		    // Process the current row
-			voronoi(dimension, start, slices, g, h);
-		    
-			IJ.showProgress(n, (int)rowCount);
+		if (present != null) {
+			for (BitSet p : threadPresent)
+				present.or(p);
 		}
-		*/
+	}
+	
+	/**
+	 * Tests if all pixel lines in a tile do not contain foreground pixels.
+	 * @param occupancy
+	 * @param dimension Processing dimension, 1 or 2.
+	 * @param x0 x-coordinate of the first line of the tile.
+	 * @param tw Count of lines in the tile.
+	 * @param other z-coordinate of the tile if dimension is 1, and y-coordinate of the tile if dimension is 2.
+	 * @return
+	 */
+	private static boolean isTileEmpty(Occupancy occupancy, int dimension, int x0, int tw, int other) {
+		for (int j = 0; j < tw; j++) {
+			boolean empty = dimension == 1 ? occupancy.isLineEmpty(1, x0 + j, 0, other) : occupancy.isLineEmpty(2, x0 + j, other, 0);
+			if (!empty)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Processing of one dimension of the distance map.
+	 * @param slices
+	 * @param dimension
+	 * @param occupancy Pixel lines that do not contain foreground pixels are skipped. Pass null to process all lines.
+	 */
+	private static void processDimension(ImageI32 slices, int dimension, Occupancy occupancy) throws InterruptedException {
+		
+		if (dimension == 0)
+			processFirstDimension(slices, occupancy);
+		else
+			processTiledDimension(slices, dimension, occupancy);
+	}
+	
+	/**
+	 * Processing of one dimension of 64-bit distance map.
+	 * The y- and z-directional rows are gathered to a contiguous buffer in tiles of TILE_WIDTH rows, like in processTiledDimension.
+	 * @param slices
+	 * @param dimension
+	 */
+	private static void processDimension(ImageI64 slices, int dimension) throws InterruptedException {
+		
+		int w = slices.width();
+		int h = slices.height();
+		int nd = slices.getDimension(dimension);
+		
+		// The dimension that is neither x nor the processing dimension.
+		int otherCount = dimension == 1 ? slices.depth() : h;
+		
+		int tilesPerRow = dimension == 0 ? h : (w + TILE_WIDTH - 1) / TILE_WIDTH;
+		int tileCount = tilesPerRow * (dimension == 0 ? slices.depth() : otherCount);
+		
+		ThreadLocal<long[]> buffer = new ThreadLocal<long[]>() {
+			@Override protected long[] initialValue() {
+				return new long[dimension == 0 ? 0 : TILE_WIDTH * nd];
+			}
+	    };
+		
+		ThreadLocal<long[]> g = new ThreadLocal<long[]>() {
+			@Override protected long[] initialValue() {
+				return new long[nd];
+			}
+	    };
+				
+	    ThreadLocal<int[]> hh = new ThreadLocal<int[]>() {
+			@Override protected int[] initialValue() {
+				return new int[nd];
+			}
+	    };
+		
+	    AtomicInteger progress = new AtomicInteger(0);
+	    
+		Loop.withIndex(0, tileCount, new Loop.Each() {
+			
+			@Override
+			public void run(long n) {
+				
+				if (dimension == 0) {
+					// The rows are contiguous in the slice arrays so they are processed in place.
+					int y = (int)(n % h);
+					int z = (int)(n / h);
+					voronoi(slices.getSlice(z), y * w, w, g.get(), hh.get());
+					IJ.showProgress(progress.incrementAndGet(), tileCount);
+					return;
+				}
+				
+				int x0 = (int)(n % tilesPerRow) * TILE_WIDTH;
+				int other = (int)(n / tilesPerRow);
+				int tw = Math.min(TILE_WIDTH, w - x0);
+				
+				long[] buf = buffer.get();
+				
+				// Gather the rows to the buffer such that each row is contiguous.
+				for (int i = 0; i < nd; i++) {
+					long[] slice = dimension == 1 ? slices.getSlice(other) : slices.getSlice(i);
+					int start = dimension == 1 ? i * w + x0 : other * w + x0;
+					for (int j = 0; j < tw; j++)
+						buf[j * nd + i] = slice[start + j];
+				}
+				
+				for (int j = 0; j < tw; j++)
+					voronoi(buf, j * nd, nd, g.get(), hh.get());
+				
+				// Scatter the processed rows back to the image.
+				for (int i = 0; i < nd; i++) {
+					long[] slice = dimension == 1 ? slices.getSlice(other) : slices.getSlice(i);
+					int start = dimension == 1 ? i * w + x0 : other * w + x0;
+					for (int j = 0; j < tw; j++)
+						slice[start + j] = buf[j * nd + i];
+				}
+				
+				IJ.showProgress(progress.incrementAndGet(), tileCount);
+			}
+		});
 	}
 	
 	/**
@@ -214,10 +669,392 @@ public class Squared_Distance_Map_ implements PlugInFilter {
 	 * @throws InterruptedException
 	 */
 	public static void squaredDistanceMap(Image img, float backgroundValue) throws InterruptedException {
-		prepare(img, backgroundValue);
+		squaredDistanceMap(img, backgroundValue, backgroundValue);
+	}
+	
+	/**
+	 * Calculates squared distance map of img and stores it back to img.
+	 * Images whose squared distances might not fit into 32 bits are processed using 64-bit arithmetic.
+	 * @param img
+	 * @param backgroundMin Pixels whose value is in range [backgroundMin, backgroundMax] are assumed to belong to the background.
+	 * @param backgroundMax
+	 * @throws InterruptedException
+	 */
+	public static void squaredDistanceMap(Image img, float backgroundMin, float backgroundMax) throws InterruptedException {
+		if (fitsImageI32(img.getDimensions())) {
+			ImageI32 dmap2 = new ImageI32(img.getDimensions());
+			squaredDistanceMap(img, dmap2, backgroundMin, backgroundMax);
+			ImageUtils.convert(dmap2, img);
+		}
+		else {
+			ImageI64 dmap2 = new ImageI64(img.getDimensions());
+			squaredDistanceMap(img, dmap2, backgroundMin, backgroundMax);
+			ImageUtils.convert(dmap2, img);
+		}
+	}
+	
+	/**
+	 * Calculates exact squared distance map of img using 64-bit integers.
+	 * Use this for images where fitsImageI32 returns false. The ImageI32 versions are faster and use less memory.
+	 * @param img Input image.
+	 * @param dmap2 At output, squared distance map. The dimensions of the image must equal to those of img.
+	 *              Pixels of images that do not contain any background pixels are set to INFINITY64.
+	 * @param backgroundMin Pixels whose value is in range [backgroundMin, backgroundMax] are assumed to belong to the background.
+	 * @param backgroundMax
+	 * @throws InterruptedException
+	 */
+	public static void squaredDistanceMap(Image img, ImageI64 dmap2, float backgroundMin, float backgroundMax) throws InterruptedException {
+		
+		// Make sure that the calculations in voronoi do not overflow.
+		int maxDimension = Math.max(img.width(), Math.max(img.height(), img.depth()));
+		if ((double)maxDimension * (double)getMaxSquaredDistance(img.getDimensions()) >= Long.MAX_VALUE / 4)
+			throw new IllegalArgumentException("The image is too large for the 64-bit squared distance map.");
+		
+		Loop.withIndex(0, img.depth(), new Loop.Each() {
+			
+			@Override
+			public void run(long zl) {
+				
+				int z = (int)zl;
+				
+				float[] in = img.getSlice(z);
+				long[] out = dmap2.getSlice(z);
+				for (int n = 0; n < in.length; n++)
+					out[n] = in[n] >= backgroundMin && in[n] <= backgroundMax ? 0 : INFINITY64;
+			}
+		});
+		
+		for (int dim = 0; dim < img.getDimensionality(); dim++)
+			processDimension(dmap2, dim);
+	}
+	
+	/**
+	 * Calculates exact squared distance map of img.
+	 * @param img Input image.
+	 * @param dmap2 At output, squared distance map. The dimensions of the image must equal to those of img.
+	 *              If a squared distance does not fit into 32 bits (see fitsImageI32), IllegalArgumentException is thrown.
+	 * @param backgroundMin Pixels whose value is in range [backgroundMin, backgroundMax] are assumed to belong to the background.
+	 * @param backgroundMax
+	 * @return Occupancy information of the foreground pixels. It can be used to skip empty regions in the subsequent processing steps.
+	 * @throws InterruptedException
+	 */
+	public static Occupancy squaredDistanceMap(Image img, ImageI32 dmap2, float backgroundMin, float backgroundMax) throws InterruptedException {
+		return squaredDistanceMap(img, dmap2, backgroundMin, backgroundMax, null);
+	}
+	
+	/**
+	 * Calculates exact squared distance map of img, and optionally extracts distance ridge of the distance map
+	 * in the same pass.
+	 * The z-directional pass is made before the y-directional pass (the order of the passes does not change the result).
+	 * The y-directional pass completes the distance map slab of z-slices at a time, and the ridge is extracted from
+	 * each slab while it is still in the cache.
+	 * @param img Input image.
+	 * @param dmap2 At output, squared distance map. The dimensions of the image must equal to those of img.
+	 * @param backgroundMin Pixels whose value is in range [backgroundMin, backgroundMax] are assumed to belong to the background.
+	 * @param backgroundMax
+	 * @param ridge If not null, distance ridge of dmap2 is placed here (see Squared_Distance_Map_To_Squared_Distance_Ridge_.danielsson).
+	 *              The dimensions of the ridge must equal to those of img.
+	 * @return Occupancy information of the foreground pixels. It can be used to skip empty regions in the subsequent processing steps.
+	 * @throws InterruptedException
+	 */
+	public static Occupancy squaredDistanceMap(Image img, ImageI32 dmap2, float backgroundMin, float backgroundMax, RidgePoints ridge) throws InterruptedException {
+		
+		// The first pass is combined with the binarization, so there is no need to call prepare.
+		// It also records the occupancy of the foreground pixels.
+		Occupancy occupancy = new Occupancy(img.getDimensions());
+		prepareAndProcessFirstDimension(img, dmap2, backgroundMin, backgroundMax, occupancy);
+		occupancy.update();
+		
+		if (img.getDimensionality() >= 3) {
+			processDimension(dmap2, 2, occupancy);
+		}
+		
+		if (ridge == null) {
+			if (img.getDimensionality() >= 2)
+				processDimension(dmap2, 1, occupancy);
+		}
+		else {
+			// The y-directional pass does not change anything in images whose height is one, but it is
+			// made anyway as it collects the squared distance values for the ridge extraction.
+			Squared_Distance_Map_To_Squared_Distance_Ridge_.RidgeExtractor extractor = new Squared_Distance_Map_To_Squared_Distance_Ridge_.RidgeExtractor(ridge, occupancy);
+			
+			int d = dmap2.depth();
+			int ridgeZ = 0;
+			for (int z = 0; z < d; z += RIDGE_SLAB_DEPTH) {
+				int endZ = Math.min(z + RIDGE_SLAB_DEPTH, d);
+				
+				BitSet present = new BitSet();
+				processTiledDimension(dmap2, 1, occupancy, z, endZ, present);
+				extractor.addSquaredDistances(present);
+				
+				// The last slice of the slab cannot be processed until the next slab is ready.
+				extractor.process(dmap2, 0, ridgeZ, endZ - 1);
+				ridgeZ = endZ - 1;
+			}
+			extractor.process(dmap2, 0, ridgeZ, d);
+			extractor.saveTables();
+		}
+		
+		return occupancy;
+	}
+	
+	/**
+	 * Reads rows [startY, startY + bundle.height()[ of all z-slices of a .raw file, binarizes them and calculates
+	 * the x-directional pass of the distance map.
+	 * @param in Input file.
+	 * @param dimensions Dimensions of the whole input file.
+	 * @param startY First y-row of the bundle.
+	 * @param bundle Image where the result is placed. Its z-slice n contains rows [startY, startY + bundle.height()[ of slice n of the input.
+	 * @param backgroundMin
+	 * @param backgroundMax
+	 * @param occupancy Extent of the foreground pixels in each row of the bundle is recorded here, in the coordinates of the bundle.
+	 */
+	private static void processBundle(DiskMappedReadBuffer in, Vec3i dimensions, int startY, ImageI32 bundle, float backgroundMin, float backgroundMax, Occupancy occupancy) throws InterruptedException {
+		
+		int w = dimensions.x;
+		int h = dimensions.y;
+		int bh = bundle.height();
+		
+		ThreadLocal<float[]> inRowsStore = new ThreadLocal<float[]>() {
+			@Override protected float[] initialValue() {
+				return new float[w * bh];
+			}
+	    };
+		
+		Loop.withIndex(0, bundle.depth(), new Loop.Each() {
+			
+			@Override
+			public void run(long zl) {
+				
+				int z = (int)zl;
+				
+				// The rows of the bundle are contiguous in the file.
+				float[] inRows = inRowsStore.get();
+				long fileStart = ((long)z * (long)h + (long)startY) * (long)w;
+				in.readFloats(fileStart, inRows, 0, inRows.length);
+				
+				int[] outSlice = bundle.getSlice(z);
+				for (int y = 0; y < bh; y++)
+					binarizeAndDistance(inRows, outSlice, y * w, w, backgroundMin, backgroundMax, occupancy, y, z);
+			}
+		});
+	}
+	
+	/**
+	 * Copies block of consecutive z-slices or y-rows between a memory-mapped .raw file and an image.
+	 * @param file The file.
+	 * @param dimensions Dimensions of the whole file.
+	 * @param startY First y-row of the block.
+	 * @param startZ First slice of the block.
+	 * @param img The image. Its dimensions define the size of the block. Its width must equal width of the file.
+	 * @param firstSlice Slices of img before this one are not copied. Slice firstSlice of img corresponds to slice startZ of the file.
+	 * @param toFile Set to true to copy from img to file, and to false to copy from file to img.
+	 */
+	private static void copyBlock(DiskMappedWriteBuffer file, Vec3i dimensions, int startY, int startZ, ImageI32 img, int firstSlice, boolean toFile) throws InterruptedException {
 		
-		for(int n = 0; n < img.getDimensionality(); n++)
-			processDimension(img, n);
+		Loop.withIndex(firstSlice, img.depth(), new Loop.Each() {
+			
+			@Override
+			public void run(long zl) {
+				
+				int z = (int)zl;
+				
+				int[] slice = img.getSlice(z);
+				long fileStart = ((long)(startZ + z - firstSlice) * (long)dimensions.y + (long)startY) * (long)dimensions.x;
+				if (toFile)
+					file.writeInts(fileStart, slice, 0, slice.length);
+				else
+					file.readInts(fileStart, slice, 0, slice.length);
+			}
+		});
+	}
+	
+	/**
+	 * Calculates exact squared distance map of an image that is stored in a file, without reading the whole image to RAM.
+	 * See squaredDistanceMapOutOfCore(String, Vec3i, String, String, float, float, long).
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public static void squaredDistanceMapOutOfCore(String inputFile, Vec3i dimensions, String outputFile, float backgroundMin, float backgroundMax, long memoryBudget) throws InterruptedException, IOException {
+		squaredDistanceMapOutOfCore(inputFile, dimensions, outputFile, null, backgroundMin, backgroundMax, memoryBudget);
+	}
+	
+	/**
+	 * Calculates exact squared distance map of an image that is stored in a file, without reading the whole image to RAM,
+	 * and optionally extracts distance ridge of the distance map in the same pass.
+	 * First, the input image is binarized and the x- and z-directional passes are made for bundles of xz-planes,
+	 * and the results are written to the output file. Then the y-directional pass is made for z-slabs of the output file.
+	 * The distance ridge of each slab is extracted as soon as the slab is complete, and the ridge points are written
+	 * to the ridge file.
+	 * The output file is memory-mapped during the processing.
+	 * @param inputFile Input .raw file. Pixels must be stored as 32-bit floating point values in big endian byte order
+	 *                  (ImageJ default for raw data).
+	 * @param dimensions Dimensions of the input image.
+	 * @param outputFile Output .raw file. The squared distance map is written to this file as 32-bit integers in big endian byte order.
+	 * @param ridgeFile If not null, distance ridge of the distance map is written to this file. It can be read using RidgePoints.read.
+	 * @param backgroundMin Pixels whose value is in range [backgroundMin, backgroundMax] are assumed to belong to the background.
+	 * @param backgroundMax
+	 * @param memoryBudget Approximate maximum amount of memory (in bytes) that is used for image data during the processing,
+	 *                     including the per-thread buffers.
+	 *                     At least one xz-plane and one slice are always processed at once, even if they do not fit into the budget.
+	 *                     The ridge points and foreground occupancy information are not included in the budget.
+	 *                     IllegalArgumentException is thrown if the per-thread buffers alone do not fit into the budget.
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public static void squaredDistanceMapOutOfCore(String inputFile, Vec3i dimensions, String outputFile, String ridgeFile, float backgroundMin, float backgroundMax, long memoryBudget) throws InterruptedException, IOException {
+		
+		int w = dimensions.x;
+		int h = dimensions.y;
+		int d = dimensions.z;
+		
+		final long INT_SIZE = 4;
+		final long FLOAT_SIZE = 4;
+		long pixelCount = (long)w * (long)h * (long)d;
+		
+		FileUtils.createFoldersFor(outputFile);
+		if (ridgeFile != null)
+			FileUtils.createFoldersFor(ridgeFile);
+		
+		try (DiskMappedReadBuffer in = new DiskMappedReadBuffer(inputFile);
+			 DiskMappedWriteBuffer out = new DiskMappedWriteBuffer(outputFile, pixelCount * INT_SIZE)) {
+			
+			if (new File(inputFile).length() < pixelCount * FLOAT_SIZE)
+				throw new IllegalArgumentException("The input file " + inputFile + " is too small for the given dimensions.");
+			
+			Occupancy occupancy = new Occupancy(dimensions);
+			
+			int threads = Runtime.getRuntime().availableProcessors();
+			
+			// x and z passes, bundle of xz-planes at a time.
+			// The bundle takes 4 bytes per bundle pixel, and the per-thread input buffers take 4 bytes per pixel of one bundle slice each.
+			// The per-thread scratch buffers of the z pass are reserved first.
+			long bundleBudget = getAvailableBudget(memoryBudget, threads * getTiledScratchSize(d));
+			int bundleHeight = (int)MathUtils.clamp(bundleBudget / ((long)w * (long)d * INT_SIZE + (long)w * FLOAT_SIZE * threads), 1, h);
+			for (int y = 0; y < h; y += bundleHeight) {
+				
+				IJ.showStatus("Squared distance map, rows " + y + "-" + (Math.min(y + bundleHeight, h) - 1) + " / " + h);
+				
+				// The bundle is stored in an image whose z-slice n contains rows [y, y + bundleHeight[ of the original slice n.
+				ImageI32 bundle = new ImageI32(new Vec3i(w, Math.min(bundleHeight, h - y), d));
+				Occupancy bundleOccupancy = new Occupancy(bundle.getDimensions());
+				processBundle(in, dimensions, y, bundle, backgroundMin, backgroundMax, bundleOccupancy);
+				bundleOccupancy.update();
+				
+				for (int z = 0; z < d; z++) {
+					for (int by = 0; by < bundle.height(); by++)
+						occupancy.setRow(y + by, z, bundleOccupancy.getRowMinX(by, z), bundleOccupancy.getRowMaxX(by, z));
+				}
+				
+				if (d > 1)
+					processTiledDimension(bundle, 2, bundleOccupancy);
+				copyBlock(out, dimensions, y, 0, bundle, 0, true);
+			}
+			
+			occupancy.update();
+			
+			// y pass and ridge extraction, z-slab at a time.
+			RidgePoints ridge = null;
+			Squared_Distance_Map_To_Squared_Distance_Ridge_.RidgeExtractor extractor = null;
+			DataOutputStream ridgeOut = null;
+			if (ridgeFile != null) {
+				ridge = new RidgePoints(dimensions);
+				extractor = new Squared_Distance_Map_To_Squared_Distance_Ridge_.RidgeExtractor(ridge, occupancy);
+				ridgeOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(ridgeFile)));
+			}
+			
+			try {
+				if (ridgeOut != null)
+					ridge.writeHeader(ridgeOut);
+				
+				// Ridge extraction of the first slices of a slab requires two last slices of the previous slab.
+				// They are copied to the beginning of the slab.
+				final int HALO = ridge != null ? 2 : 0;
+				
+				// The per-thread scratch buffers of the y pass and, if the ridge is extracted, the per-thread windows
+				// of three padded slices are reserved first. The rest of the budget is available for the slab.
+				long threadMemory = getTiledScratchSize(h);
+				if (ridge != null)
+					threadMemory += 3 * (long)(w + 2) * (long)(h + 2) * INT_SIZE;
+				long slabBudget = getAvailableBudget(memoryBudget, threads * threadMemory);
+				int slabDepth = (int)MathUtils.clamp(slabBudget / ((long)w * (long)h * INT_SIZE) - 2 * HALO, 1, d);
+				
+				int[][] halo = new int[0][];
+				ImageI32 slab = null;
+				int slabStart = 0;
+				int ridgeZ = 0;
+				for (int z = 0; z < d; z += slabDepth) {
+					
+					IJ.showStatus("Squared distance map, slices " + z + "-" + (Math.min(z + slabDepth, d) - 1) + " / " + d);
+					
+					slabStart = z - halo.length;
+					slab = new ImageI32(new Vec3i(w, h, Math.min(z + slabDepth, d) - slabStart));
+					for (int n = 0; n < halo.length; n++)
+						System.arraycopy(halo[n], 0, slab.getSlice(n), 0, halo[n].length);
+					
+					copyBlock(out, dimensions, 0, z, slab, halo.length, false);
+					
+					BitSet present = ridge != null ? new BitSet() : null;
+					if (h > 1 || present != null)
+						processTiledDimension(slab, 1, null, halo.length, slab.depth(), present);
+					copyBlock(out, dimensions, 0, z, slab, halo.length, true);
+					
+					if (ridge != null) {
+						// The last slice of the slab cannot be processed until the next slab is ready.
+						int endZ = slabStart + slab.depth() - 1;
+						extractor.addSquaredDistances(present);
+						extractor.process(slab, slabStart, ridgeZ, endZ);
+						writeRidgeSlices(ridge, ridgeOut, ridgeZ, endZ);
+						ridgeZ = endZ;
+						
+						halo = new int[Math.min(HALO, slab.depth())][];
+						for (int n = 0; n < halo.length; n++)
+							halo[n] = slab.getSlice(slab.depth() - halo.length + n);
+					}
+				}
+				
+				if (ridge != null) {
+					extractor.process(slab, slabStart, ridgeZ, d);
+					writeRidgeSlices(ridge, ridgeOut, ridgeZ, d);
+					extractor.saveTables();
+				}
+			}
+			finally {
+				if (ridgeOut != null)
+					ridgeOut.close();
+			}
+		}
+		
+		IJ.showStatus("");
+	}
+	
+	/**
+	 * Calculates size of the per-thread scratch buffers of processTiledDimension.
+	 * @param nd Length of the rows in the processing dimension.
+	 */
+	private static long getTiledScratchSize(int nd) {
+		// Tile buffer, and g and h arrays.
+		return (long)TILE_WIDTH * nd * 4 + (long)nd * 8 + (long)nd * 4;
+	}
+	
+	/**
+	 * Calculates how much of the memory budget is left after the given amount has been reserved.
+	 * @throws IllegalArgumentException If nothing is left.
+	 */
+	private static long getAvailableBudget(long memoryBudget, long reserved) {
+		if (memoryBudget <= reserved)
+			throw new IllegalArgumentException("The memory budget is too small. At least " + (reserved / (1024 * 1024) + 1) + " MB is required for the per-thread buffers.");
+		return memoryBudget - reserved;
+	}
+	
+	/**
+	 * Writes slices [startZ, endZ[ of the ridge points to a file and frees them from memory.
+	 */
+	private static void writeRidgeSlices(RidgePoints ridge, DataOutputStream out, int startZ, int endZ) throws IOException {
+		for (int z = startZ; z < endZ; z++) {
+			ridge.writeSlice(z, out);
+			ridge.clearSlice(z);
+		}
 	}
 	
 	private ImageStack stack;
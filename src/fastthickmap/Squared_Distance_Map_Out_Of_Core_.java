@@ -0,0 +1,86 @@
+package fastthickmap;
+
+import java.io.IOException;
+
+import ij.IJ;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+
+/**
+ * ImageJ plugin that calculates squared distance map, and optionally distance ridge, of an image stored in a .raw file
+ * without reading the whole image to RAM. Use this for images that do not fit into the memory.
+ *
+ * @author miettinen_a
+ *
+ */
+public class Squared_Distance_Map_Out_Of_Core_ implements PlugIn {
+
+	static String defaultInputFile = "";
+	static int defaultWidth = 0;
+	static int defaultHeight = 0;
+	static int defaultDepth = 0;
+	static double defaultBackground = 0;
+	static String defaultOutputFile = "";
+	static String defaultRidgeFile = "";
+	static long defaultMemoryBudget = 0;
+
+	@Override
+	public void run(String arg) {
+
+		final long MB = 1024 * 1024;
+
+		long memoryBudget = defaultMemoryBudget;
+		if (memoryBudget <= 0)
+			memoryBudget = IJ.maxMemory() / 2 / MB;
+
+		GenericDialog dlg = new GenericDialog("Out-of-core squared distance map settings");
+		dlg.addFileField("Input .raw file", defaultInputFile);
+		dlg.addMessage("The input pixels must be 32-bit floating point values in big endian byte order.");
+		dlg.addNumericField("Width", defaultWidth, 0);
+		dlg.addNumericField("Height", defaultHeight, 0);
+		dlg.addNumericField("Depth", defaultDepth, 0);
+		dlg.addNumericField("Background value", defaultBackground, 2);
+		dlg.addFileField("Output .raw file", defaultOutputFile);
+		dlg.addFileField("Distance ridge file (optional)", defaultRidgeFile);
+		dlg.addNumericField("Memory budget", memoryBudget, 0, 8, "MB");
+		dlg.showDialog();
+
+		if (dlg.wasCanceled())
+			return;
+
+		defaultInputFile = dlg.getNextString();
+		defaultWidth = (int)dlg.getNextNumber();
+		defaultHeight = (int)dlg.getNextNumber();
+		defaultDepth = (int)dlg.getNextNumber();
+		defaultBackground = dlg.getNextNumber();
+		defaultOutputFile = dlg.getNextString();
+		defaultRidgeFile = dlg.getNextString();
+		defaultMemoryBudget = (long)dlg.getNextNumber();
+
+		if (defaultWidth <= 0 || defaultHeight <= 0 || defaultDepth <= 0) {
+			IJ.showMessage("The dimensions of the input image must be positive.");
+			return;
+		}
+
+		if (defaultInputFile.isEmpty() || defaultOutputFile.isEmpty()) {
+			IJ.showMessage("The input and output files must be given.");
+			return;
+		}
+
+		String ridgeFile = defaultRidgeFile.isEmpty() ? null : defaultRidgeFile;
+		float background = (float)defaultBackground;
+
+		try {
+			Squared_Distance_Map_.squaredDistanceMapOutOfCore(defaultInputFile, new Vec3i(defaultWidth, defaultHeight, defaultDepth),
+					defaultOutputFile, ridgeFile, background, background, defaultMemoryBudget * MB);
+		} catch (InterruptedException e) {
+			IJ.showProgress(1.0);
+			IJ.showStatus("Out-of-core squared distance map was cancelled. The output files are incomplete.");
+		} catch (IllegalArgumentException e) {
+			IJ.showMessage(e.getMessage());
+		} catch (IOException e) {
+			IJ.showMessage("I/O exception while reading or writing the files: " + e.getMessage());
+		}
+	}
+
+}
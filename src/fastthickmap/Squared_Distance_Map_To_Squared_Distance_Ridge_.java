@@ -1,14 +1,9 @@
 package fastthickmap;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -28,16 +23,17 @@ import ij.process.ImageProcessor;
  */
 public class Squared_Distance_Map_To_Squared_Distance_Ridge_ implements PlugInFilter {
 
-	private static ArrayList<Integer> squareTable = new ArrayList<Integer>(); 
+	private static int[] squareTable = new int[0];
 
 	/**
 	 * Init table of largest integers whose square is less than table index.
 	 */
 	private static void initSquareTable(int maxSquare) {
-		if (squareTable.size() < maxSquare) {
-			squareTable.ensureCapacity(maxSquare);
-			while (squareTable.size() <= maxSquare)
-				squareTable.add(MathUtils.largestIntWhoseSquareIsLessThan(squareTable.size()));
+		if (squareTable.length <= maxSquare) {
+			int[] newTable = Arrays.copyOf(squareTable, maxSquare + 1);
+			for (int n = squareTable.length; n < newTable.length; n++)
+				newTable[n] = MathUtils.largestIntWhoseSquareIsLessThan(n);
+			squareTable = newTable;
 		}
 	}
 
@@ -46,387 +42,417 @@ public class Squared_Distance_Map_To_Squared_Distance_Ridge_ implements PlugInFi
 	 * function, the cache must be first initialized with initSquareTable.
 	 */
 	private static int largestIntWhoseSquareIsLessThanCached(int square) {
-		return squareTable.get(square);
+		return squareTable[square];
 	}
 	
 	/**
-	Helper for getMaxSphereRadius.
-	Tests if a sphere of squared radius Rdot2 centered at (cx, cy, cz) fits inside a sphere of radius R2 centered at origin.
-	*/
-	private static boolean testFit(int cx, int cy, int cz, int R2, int size, int Rdot2)
-	{
-		for (int z = 0; z < size; z++)
-		{
-			int dz = z - cz;
-			for (int y = 0; y < size; y++)
-			{
-				// Squared x-coordinate of the surface of a sphere centered at (0, cy, cz) and having squared radiut Rdot2.
-				int dy = y - cy;
-				int test = Rdot2 - dy * dy - dz * dz;
-
-				if (test >= 0)
-				{
-					test = largestIntWhoseSquareIsLessThanCached(test) + cx;
-
-
-					// Squared x-coordinate of the surface of a sphere centered at origin and having squared radius R2.
-					int Rx = R2 - y * y - z * z;
-
-					if (Rx >= 0)
-						Rx = largestIntWhoseSquareIsLessThanCached(Rx);
-					else
-						Rx = -1;
-
-					if (test > Rx)
-					{
-						// The sphere does not fit
-						return false;
-					}
-				}
-			}
+	 * Calculates Danielsson lookup table entries on demand.
+	 * 
+	 * Table entry k for squared radius R2 is the squared radius of the largest sphere that is centered
+	 * at neighbour offset k ((1, 0, 0), (1, 1, 0) or (1, 1, 1)) and fits inside the sphere of squared
+	 * radius R2 centered at origin.
+	 * The entries are found by searching the smallest sphere centered at origin that contains the sphere
+	 * of squared radius r centered at the offset. The containment test is separable: each z-slice of the
+	 * sphere is a disk that gives a lower bound for the squared radius of the containing sphere, and the
+	 * bound depends only on the squared radius of the disk. The disk and sphere bounds are calculated
+	 * when they are needed for the first time, and shared between all entries and the offsets.
+	 * The minimum containing squared radius is non-decreasing in r, so the entries are found by
+	 * searching upwards from the previous entry calculated in the same thread.
+	 * 
+	 * The methods can be called from multiple threads simultaneously. In the worst case some bounds are
+	 * calculated twice.
+	 */
+	private static class TableBuilder {
+
+		/**
+		 * Offsets of the neighbours corresponding to table1, table2 and table3.
+		 * The x-offset is always one.
+		 */
+		private static final int[] CY = new int[] { 0, 1, 1 };
+		private static final int[] CZ = new int[] { 0, 0, 1 };
+
+		/**
+		 * diskMin[cy][B] is the minimum squared radius of a disk centered at origin that contains
+		 * a disk of squared radius B centered at (1, cy), or 0 if it has not been calculated yet.
+		 */
+		private final int[][] diskMin;
+
+		/**
+		 * sphereMin[k][r] is the minimum squared radius of a sphere centered at origin that contains
+		 * a sphere of squared radius r centered at neighbour offset k, or 0 if it has not been calculated yet.
+		 */
+		private final int[][] sphereMin;
+
+		/**
+		 * radii2[r] is r if r is a sum of three squares, and -1 otherwise.
+		 */
+		private final int[] radii2;
+
+		/**
+		 * Constructor.
+		 * @param size Entries for squared radii up to size - 1 can be calculated.
+		 */
+		public TableBuilder(int size) {
+			diskMin = new int[2][size];
+			sphereMin = new int[3][size];
+
+			radii2 = new int[size];
+			for (int r2 = 0; r2 < size; r2++)
+				radii2[r2] = MathUtils.isSumOfThreeSquares(r2) ? r2 : -1;
+
+			initSquareTable(size - 1);
 		}
 
-		// Here sphere with radius of Rdot fits inside the central sphere.
-		return true;
-	}
-
-
-
-	private static int search(int R2Index, ArrayList<Integer> radii2, int R2, int cx, int cy, int cz, int size)
-	{
-		// Binary search for last index for which testFit(... R2, size, radii2[index]) gives true.
-		// This handles also -1 elements in the radii2 array.
-
-		int  first = R2Index;
-		while (first > 0 && (radii2.get(first) < 0 || largestIntWhoseSquareIsLessThanCached(radii2.get(first)) >= largestIntWhoseSquareIsLessThanCached(R2) - 2))
-			first--;
-
-		int last = R2Index;
-
-		while (last - first > 1)
-		{
-			int mid = (last + first) / 2;
-
-			// Handle -1 elements in the array
-			while (mid < last && radii2.get(mid) < 0)
-				mid++;
-
-			if (mid >= last)
-			{
-				// last is the first non -1 element after (and including) mid.
-				last = (last + first) / 2;
+		/**
+		 * Calculates the smallest squared radius A of a disk centered at origin that contains
+		 * a disk of squared radius B centered at (1, cy).
+		 * The disks are compared row by row using half-widths largestIntWhoseSquareIsLessThan(v) of the discrete rows.
+		 */
+		private int getDiskMin(int B, int cy) {
+			int result = diskMin[cy][B];
+			if (result == 0) {
+				for (int dy = -cy; dy * dy <= B; dy++) {
+					int y = dy + cy;
+					// Half-width of the row of disk B, shifted by one pixel.
+					int q = largestIntWhoseSquareIsLessThanCached(B - dy * dy) + 1;
+					// largestIntWhoseSquareIsLessThan(v) >= q if and only if v >= q^2 + 1.
+					int A = y * y + q * q + 1;
+					if (A > result)
+						result = A;
+				}
+				diskMin[cy][B] = result;
 			}
-			else
-			{
-
-				int Rdot2 = radii2.get(mid);
+			return result;
+		}
 
-				if (testFit(cx, cy, cz, R2, size, Rdot2))
-				{
-					// Fits. Set start = mid
-					first = mid;
-				}
-				else
-				{
-					// Does not fit. Set end = mid
-					last = mid;
+		/**
+		 * Calculates the smallest squared radius of a sphere centered at origin that contains
+		 * a sphere of squared radius r centered at neighbour offset k.
+		 * Each z-slice of the spheres is a disk, and the slices are tested independently.
+		 */
+		private int getSphereMin(int r, int k) {
+			int result = sphereMin[k][r];
+			if (result == 0) {
+				int cy = CY[k];
+				int cz = CZ[k];
+				for (int dz = -cz; dz * dz <= r; dz++) {
+					int z = dz + cz;
+					int R2 = z * z + getDiskMin(r - dz * dz, cy);
+					if (R2 > result)
+						result = R2;
 				}
+				sphereMin[k][r] = result;
 			}
+			return result;
 		}
 
-		return first;
-	}
-
+		/**
+		 * Tests if sphere of squared radius r centered at neighbour offset k fits inside sphere of squared radius R2 centered at origin.
+		 */
+		private boolean fits(int r, int k, int R2) {
+			return getSphereMin(r, k) <= R2;
+		}
 
+		/**
+		 * Calculates table entry k for squared radius R2.
+		 * @param R2 Squared radius of the sphere centered at origin. Must be a sum of three squares.
+		 * @param k Index of the table.
+		 * @param lowerBound Squared radius of a sphere that is known to fit inside R2, e.g. entry k for a smaller squared radius.
+		 * @return Squared radius of the largest fitting sphere.
+		 */
+		public int getMaxSphereRadius(int R2, int k, int lowerBound) {
+			if (R2 <= 0)
+				return 0;
+
+			// Smaller spheres than this are assumed to fit.
+			// This is consistent with the search-based table generation used earlier.
+			int first = 0;
+			int K = largestIntWhoseSquareIsLessThanCached(R2) - 2;
+			if (K > 0) {
+				first = K * K;
+				while (radii2[first] < 0)
+					first--;
+			}
 
-	/*
-	Calculates squared radius of largest sphere that is centered at (cx, cy, cz) and fits inside sphere of radius sqrt(r2) centered at (0, 0, 0).
-	Works for positive (cx, cy, cz) only.
-	indices lookup table gives index for squared radius.
-	radii lookup table gives radius for index.
-	NOTE: This is optimized version that does not use separate mask array, and does only 1/8 of processing of the unoptimized version.
-	*/
-	private static int getMaxSphereRadius(int cx, int cy, int cz, ArrayList<Integer> radii2, int R2Index)
-	{
-		int R2 = radii2.get(R2Index);
-		if (R2 < 0)
-			throw new IllegalArgumentException("Determining Danielsson tables for squared radius that is not a sum of three squares.");
+			// Search for the last r in [lo, R2 - 1] that fits, first by doubling the step and then by bisection.
+			int lo = Math.max(first, lowerBound);
+			int hi = R2;
+			int step = 1;
+			while (lo + step < hi && fits(lo + step, k, R2)) {
+				lo += step;
+				step *= 2;
+			}
+			hi = Math.min(hi, lo + step);
 
-		
-		int Rint = (int)Math.ceil(Math.sqrt(R2));
-		int size = Rint + 1;
+			while (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				if (fits(mid, k, R2))
+					lo = mid;
+				else
+					hi = mid;
+			}
 
-		int trial = search(R2Index, radii2, R2, cx, cy, cz, size);
+			// Only sums of three squares are valid squared radii.
+			while (radii2[lo] < 0)
+				lo--;
 
-		return trial;
+			return lo;
+		}
 	}
-	
-	
-	/**
-	 * Calculates squared radius of largest sphere that is centered at (cx, cy, cz)
-	 * and fits inside sphere of radius sqrt(r2) centered at (0, 0, 0). Works for
-	 * positive (cx, cy, cz) only. indices lookup table gives index for squared
-	 * radius. radii lookup table gives radius for index. NOTE: This is optimized
-	 * version that does not use separate mask array, and does only 1/8 of
-	 * processing of the unoptimized version.
-	 */
-//	private static int getMaxSphereRadius(int cx, int cy, int cz, ArrayList<Integer> radii2, int R2Index) {
-//		int R2 = radii2.get(R2Index);
-//		if (R2 < 0)
-//			throw new IllegalArgumentException(
-//					"Determining Danielsson tables for squared radius that is not a sum of three squares.");
-//
-//		// Create mask of sphere centered at origin, having radius R
-//		int Rint = (int) Math.ceil(Math.sqrt(R2));
-//
-//		int size = Rint + 1;
-//
-//		// Find the largest r that still fits inside the central sphere
-//		// by testing mask of sphere centered at (cx, cy, cz).
-//		int startInd = R2Index;
-//		for (int RdotInd = startInd - 1; RdotInd >= 0; RdotInd--) {
-//			int Rdot2 = radii2.get(RdotInd);
-//
-//			if (Rdot2 >= 0) {
-//				boolean fits = true;
-//
-//				outerLoop: for (int z = 0; z < size; z++) {
-//					int dz = z - cz;
-//					for (int y = 0; y < size; y++) {
-//						// Squared x-coordinate of the surface of a sphere centered at (0, cy, cz) and
-//						// having squared radiut Rdot2.
-//						int dy = y - cy;
-//						int test = Rdot2 - dy * dy - dz * dz;
-//
-//						if (test >= 0) {
-//							test = largestIntWhoseSquareIsLessThanCached(test) + cx;
-//							
-//							// Squared x coordinate of the surface of a sphere centered at origin and having
-//							// squared radius R2.
-//							int Rx = R2 - y * y - z * z;
-//
-//							if (Rx >= 0)
-//								Rx = largestIntWhoseSquareIsLessThanCached(Rx);
-//							else
-//								Rx = -1;
-//
-//							if (test > Rx) {
-//								// The sphere does not fit, we can skip processing of both inner loops.
-//								fits = false;
-//								break outerLoop;
-//							}
-//						}
-//					}
-//				}
-//
-//				// Here sphere with radius of Rdot fits inside the central sphere.
-//				if (fits)
-//					return Rdot2;
-//			}
-//
-//		}
-//
-//		return 0;
-//	}
 
 	/**
-	 * Expands Danielsson lookup tables so that they cover at least squared radius
-	 * R2max.
+	 * Makes sure that Danielsson lookup tables contain entries for the given squared radii.
+	 *
+	 * @param tables Array containing table1, table2 and table3.
+	 * @param radii2 Squared radii whose entries are needed, in ascending order. All must be sums of three squares.
+	 * @return Array containing the expanded tables. If the input tables already contain all the entries,
+	 *         they are returned as such.
 	 */
-	private static void expandDanielssonTables(ArrayList<Integer> table1, ArrayList<Integer> table2,
-			ArrayList<Integer> table3, int R2max) throws InterruptedException {
-		// Test if the tables are already complete.
-		if (table1.size() >= R2max)
-			return;
-
-		// Determine which elements of the tables need to be determined
-		int Rmax = MathUtils.largestIntWhoseSquareIsLessThan(R2max) + 1;
-		final int invalidValue = -1;
-		final int toBeDeterminedValue = Integer.MAX_VALUE;
-		for (int z = 0; z < Rmax; z++) {
-			for (int y = 0; y < Rmax; y++) {
-				for (int x = 0; x < Rmax; x++) {
-					int R2 = x * x + y * y + z * z;
-					if (R2 <= R2max) {
-						// radius is less than maximum, add it to the tables.
-						while (table1.size() <= R2) {
-							table1.add(invalidValue);
-							table2.add(invalidValue);
-							table3.add(invalidValue);
-						}
-
-						if (table1.get(R2) == invalidValue) {
-							table1.set(R2, toBeDeterminedValue);
-							table2.set(R2, toBeDeterminedValue);
-							table3.set(R2, toBeDeterminedValue);
-						}
-					}
-				}
-			}
+	private static int[][] expandDanielssonTables(int[][] tables, int[] radii2) throws InterruptedException {
+
+		if (DanielssonTableCache.containsAll(tables, radii2))
+			return tables;
+
+		int oldSize = tables[0].length;
+		int size = Math.max(oldSize, radii2[radii2.length - 1] + 1);
+		final int[] table1 = Arrays.copyOf(tables[0], size);
+		final int[] table2 = Arrays.copyOf(tables[1], size);
+		final int[] table3 = Arrays.copyOf(tables[2], size);
+		for (int r2 = oldSize; r2 < size; r2++) {
+			int value = MathUtils.isSumOfThreeSquares(r2) ? DanielssonTableCache.UNDETERMINED : DanielssonTableCache.INVALID;
+			table1[r2] = value;
+			table2[r2] = value;
+			table3[r2] = value;
+		}
+		if (table1[0] == DanielssonTableCache.UNDETERMINED) {
+			table1[0] = 0;
+			table2[0] = 0;
+			table3[0] = 0;
+		}
 
-			IJ.showProgress(z, Rmax);
+		// Make list of entries that must be calculated.
+		int count = 0;
+		for (int n = 0; n < radii2.length; n++) {
+			if (table1[radii2[n]] == DanielssonTableCache.UNDETERMINED)
+				count++;
+		}
+		final int[] todo = new int[count];
+		count = 0;
+		for (int n = 0; n < radii2.length; n++) {
+			if (table1[radii2[n]] == DanielssonTableCache.UNDETERMINED)
+				todo[count++] = radii2[n];
 		}
 
-		// Create a list of possible radius^2 values.
-		int maxr2 = 0;
-		ArrayList<Integer> radii2 = new ArrayList<Integer>();
-		for (int r2 = 0; r2 < table1.size(); r2++) {
-			if (table1.get(r2) != invalidValue) // Value is possible if it is not marked as invalid in the tables.
-			{
-				radii2.add(r2);
-				if(r2 > maxr2)
-					maxr2 = r2;
-			}
-			else {
-				radii2.add(-1);
+		TableBuilder builder = new TableBuilder(size);
+
+		// The entries calculated previously in each thread are used as lower bounds for the next entries.
+		// Loop.withIndex gives increasing indices to each thread, so the previous entry is for a smaller squared radius.
+		ThreadLocal<int[]> previousStore = new ThreadLocal<int[]>() {
+			@Override
+			protected int[] initialValue() {
+				return new int[4];
 			}
-		}
-		
-		
-		initSquareTable(maxr2);
+		};
 
 		AtomicInteger progress = new AtomicInteger(0);
-		Loop.withIndex(0, table1.size(), new Loop.Each() {
+		Loop.withIndex(0, todo.length, new Loop.Each() {
 
 			@Override
-			public void run(long r2l) {
-				int r2 = (int) r2l;
-				if (table1.get(r2) == toBeDeterminedValue) {
-					table1.set(r2, getMaxSphereRadius(1, 0, 0, radii2, r2));
-					table2.set(r2, getMaxSphereRadius(1, 1, 0, radii2, r2));
-					table3.set(r2, getMaxSphereRadius(1, 1, 1, radii2, r2));
+			public void run(long nl) {
+				int r2 = todo[(int) nl];
+
+				// previous[0] is squared radius and previous[1...3] are the corresponding table entries.
+				int[] previous = previousStore.get();
+				if (previous[0] > r2) {
+					previous[1] = 0;
+					previous[2] = 0;
+					previous[3] = 0;
 				}
 
-				IJ.showProgress(progress.incrementAndGet(), table1.size());
+				table1[r2] = previous[1] = builder.getMaxSphereRadius(r2, 0, previous[1]);
+				table2[r2] = previous[2] = builder.getMaxSphereRadius(r2, 1, previous[2]);
+				table3[r2] = previous[3] = builder.getMaxSphereRadius(r2, 2, previous[3]);
+				previous[0] = r2;
+
+				IJ.showProgress(progress.incrementAndGet(), todo.length);
 			}
 		});
 
-		// Single-threaded version
-		//for (int r2 = 0; r2 < table1.size(); r2++) {
-		//	if (table1.get(r2) == toBeDeterminedValue) {
-		//		table1.set(r2, getMaxSphereRadius(1, 0, 0, radii2, r2));
-		//		table2.set(r2, getMaxSphereRadius(1, 1, 0, radii2, r2));
-		//		table3.set(r2, getMaxSphereRadius(1, 1, 1, radii2, r2));
-		//  }
-		//}
+		return new int[][] { table1, table2, table3 };
 	}
 
 	/**
-	 * Reads lookup table from disk.
+	 * Finds all distinct non-zero values in the foreground of the squared distance map.
+	 * INFINITY values of images that do not contain any background are not included, as they need no Danielsson table entries.
+	 * @return Set of the values.
 	 */
-	private static void readTable(List<Integer> table, String filename) {
-		table.clear();
-
-		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)))) {
-			while (true)
-				table.add(in.readInt());
-		} catch (EOFException ignore) {
-			// Finished reading, that's fine.
-		} catch (IOException ex) {
-			// We will re-calculate the table.
-			table.clear();
-		}
+	private static BitSet getSquaredDistances(ImageI32 dmap2, Occupancy occupancy) throws InterruptedException {
+
+		// Each thread collects the values to its own set, and the sets are combined at the end.
+		List<BitSet> threadPresent = Collections.synchronizedList(new ArrayList<BitSet>());
+		ThreadLocal<BitSet> presentStore = new ThreadLocal<BitSet>() {
+			@Override
+			protected BitSet initialValue() {
+				BitSet result = new BitSet();
+				threadPresent.add(result);
+				return result;
+			}
+		};
+
+		Loop.withIndex(0, dmap2.depth(), new Loop.Each() {
+
+			@Override
+			public void run(long zl) {
+				int z = (int)zl;
+				int[] slice = dmap2.getSlice(z);
+				int w = dmap2.width();
+				BitSet myPresent = presentStore.get();
+				for (int y = 0; y < dmap2.height(); y++) {
+					// Neighbouring pixels often have the same value, and the set is not updated for repeated values.
+					// That also skips the background.
+					int last = 0;
+					for (int x = occupancy.getRowMinX(y, z); x <= occupancy.getRowMaxX(y, z); x++) {
+						int v = slice[y * w + x];
+						if (v != last && v < Squared_Distance_Map_.INFINITY) {
+							myPresent.set(v);
+							last = v;
+						}
+					}
+				}
+			}
+		});
+
+		BitSet radii2 = new BitSet();
+		for (BitSet p : threadPresent)
+			radii2.or(p);
+		radii2.clear(0);
+
+		return radii2;
 	}
 
 	/**
-	 * Writes lookup table to disk.
+	 * Ring buffer of three consecutive z-slices of a squared distance map, used for
+	 * streaming ridge extraction. The slices are stored with one pixel of zero
+	 * padding around the region of interest so that neighbours of border pixels can
+	 * be read without bounds checks. Each thread should use its own window and
+	 * process consecutive slices so that only one new slice must be loaded per slice.
 	 */
-	private static void writeTable(List<Integer> table, String filename) {
-		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))) {
-			for (int n = 0; n < table.size(); n++)
-				out.writeInt(table.get(n));
-		} catch (IOException ignore) {
-			// We ignore the exception. As a result, the data is not cached.
+	private static class SliceWindow {
+
+		/**
+		 * Image whose slices are loaded to the window, and the z-coordinate of its first slice.
+		 */
+		private final ImageI32 img;
+		private final int imgStartZ;
+
+		/**
+		 * Depth of the whole squared distance map. Slices outside of the map are zero.
+		 */
+		private final int depth;
+
+		/**
+		 * Start of the region of interest in the x- and y-directions.
+		 */
+		private final int startX;
+		private final int startY;
+
+		/**
+		 * Width and height of the padded slices.
+		 */
+		private final int pw;
+		private final int ph;
+
+		/**
+		 * Padded slices. Slice z is stored at index floorMod(z, 3).
+		 */
+		private final int[][] slices;
+
+		/**
+		 * z-coordinate of the slice stored at each index of the slices array.
+		 */
+		private final int[] sliceZ = new int[] { Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
+
+		/**
+		 * Constructor. The window is initially empty.
+		 * @param img Image where the slices are loaded from.
+		 * @param startZ z-coordinate of the first slice of the image in the whole squared distance map.
+		 * @param depth Depth of the whole squared distance map.
+		 * @param min Minimum corner of the region of interest.
+		 * @param max Maximum corner of the region of interest.
+		 * @param slices Storage for the padded slices, allocated using allocate. The storage may be re-used
+		 *               for another window once this window is not used anymore.
+		 */
+		public SliceWindow(ImageI32 img, int startZ, int depth, Vec3i min, Vec3i max, int[][] slices) {
+			this.img = img;
+			imgStartZ = startZ;
+			this.depth = depth;
+			startX = min.x;
+			startY = min.y;
+			pw = max.x - min.x + 3;
+			ph = max.y - min.y + 3;
+			this.slices = slices;
 		}
-	}
 
-	/**
-	 * Creates Danielsson lookup tables that cover at least squared radius R2max.
-	 * Uses old tables if they are found.
-	 */
-	private static void getDanielssonTables(ArrayList<Integer> table1, ArrayList<Integer> table2,
-			ArrayList<Integer> table3, int R2max) throws InterruptedException {
-		readTable(table1, "danielsson_table_1.jdat");
-		readTable(table2, "danielsson_table_2.jdat");
-		readTable(table3, "danielsson_table_3.jdat");
-
-		if (table1.size() < R2max) {
-			expandDanielssonTables(table1, table2, table3, R2max);
-			writeTable(table1, "danielsson_table_1.jdat");
-			writeTable(table2, "danielsson_table_2.jdat");
-			writeTable(table3, "danielsson_table_3.jdat");
+		/**
+		 * Allocates storage for the padded slices of a window whose region of interest is given.
+		 */
+		public static int[][] allocate(Vec3i min, Vec3i max) {
+			return new int[3][(max.x - min.x + 3) * (max.y - min.y + 3)];
 		}
-	}
 
-	/**
-	 * Extracts pixels in neighbourhood from a big image. This function is tuned for
-	 * conversion from float to int pixels. Sets those neighbourhood pixels to zero
-	 * that are outside the image.
-	 * 
-	 * @param nb Neighbourhood pixels are assigned to this image. The size of this
-	 *           image is not checked but it must be 2 * nbRadius + 1.
-	 */
-	private static void getNeighbourhoodZero(Image img, int cx, int cy, int cz, Vec3i nbRadius, int[][][] nb) {
-		//Vec3i start = nbCenter.sub(nbRadius);
-		int startx = cx - nbRadius.x;
-		int starty = cy - nbRadius.y;
-		int startz = cz - nbRadius.z;
-		
-		//Vec3i start0 = start;
-		int start0x = startx;
-		int start0y = starty;
-		int start0z = startz;
-		
-		//Vec3i end = nbCenter.add(nbRadius);
-		int endx = cx + nbRadius.x;
-		int endy = cy + nbRadius.y;
-		int endz = cz + nbRadius.z;
-
-		// Make sure start point is in the image.
-		// If start is > image dimensions, checks made for end will prevent the loops
-		// from running,
-		// so there's no need to check that start < image dimensions.
-		if (startx < 0)
-			startx = 0;
-		if (starty < 0)
-			starty = 0;
-		if (startz < 0)
-			startz = 0;
-
-		int w = img.width();
-		int h = img.height();
-		int d = img.depth();
-
-		// Make sure end point is in the image.
-		if (endx > w - 1)
-			endx = w - 1;
-		if (endy > h - 1)
-			endy = h - 1;
-		if (endz > d - 1)
-			endz = d - 1;
-
-		// Zero neighbourhood if there's not enough data to fill it.
-		if (startx == 0 || starty == 0 || startz == 0 || endx == w - 1 || endy == h - 1 || endz == d - 1) {
-			for (int z = 0; z < 2 * nbRadius.z + 1; z++) {
-				for (int y = 0; y < 2 * nbRadius.y + 1; y++) {
-					for (int x = 0; x < 2 * nbRadius.x + 1; x++) {
-						nb[x][y][z] = 0;
-					}
+		/**
+		 * Gets the padded slice z, loading it from the source image if it is not in the window.
+		 * Slices outside of the squared distance map are filled with zeroes.
+		 * Pixel (x, y) of the slice is at index getIndex(x, y) of the returned array.
+		 */
+		public int[] get(int z) {
+			int n = Math.floorMod(z, 3);
+			int[] slice = slices[n];
+			if (sliceZ[n] != z) {
+				if (z < 0 || z >= depth) {
+					Arrays.fill(slice, 0);
+				}
+				else {
+					int[] src = img.getSlice(z - imgStartZ);
+					int w = pw - 2;
+					for (int y = 0; y < ph - 2; y++)
+						System.arraycopy(src, (y + startY) * img.width() + startX, slice, (y + 1) * pw + 1, w);
 				}
+				sliceZ[n] = z;
 			}
+			return slice;
 		}
 
-		// Copy data to neighbourhood image.
-		for (int z = startz; z <= endz; z++) {
-			for (int y = starty; y <= endy; y++) {
-				for (int x = startx; x <= endx; x++) {
-					float val = img.get(x, y, z);
-					nb[x - start0x][y - start0y][z - start0z] = (int) Math.round(val);
-				}
-			}
+		/**
+		 * Gets index of pixel (x, y) in the padded slices.
+		 */
+		public int getIndex(int x, int y) {
+			return (y - startY + 1) * pw + (x - startX + 1);
+		}
+
+		/**
+		 * Gets width of the padded slices, i.e. the index difference between pixels at (x, y) and (x, y + 1).
+		 */
+		public int getStride() {
+			return pw;
 		}
 	}
 
+	/**
+	 * Tests if the largest sphere that fits inside the sphere of squared radius nb2 in a neighbouring pixel
+	 * covers the sphere of squared radius c in the current pixel.
+	 * The Danielsson tables always give a value smaller than the index (or zero for index zero),
+	 * so neighbours whose value is not larger than c cannot cover the current sphere.
+	 * That test is made first as it does not require (possibly cache-missing) table access.
+	 * 
+	 * @param table Danielsson table corresponding to the offset to the neighbour.
+	 * @param nb2   Squared distance value of the neighbour.
+	 * @param c     Squared distance value of the current pixel.
+	 */
+	private static boolean covers(int[] table, int nb2, int c) {
+		return nb2 > c && table[nb2] >= c;
+	}
+
 	/**
 	 * Calculates centers of locally maximal disks using Danielsson algorithm. The
 	 * output image can be interpreted as medial axis or distance ridge. Drawing a
@@ -442,76 +468,290 @@ public class Squared_Distance_Map_To_Squared_Distance_Ridge_ implements PlugInFi
 	 *              be empty before calling this function.
 	 */
 	public static void danielsson(Image dmap2, Image out) throws InterruptedException {
+		
+		ImageI32 dmap2i = new ImageI32(dmap2.getDimensions());
+		ImageUtils.round(dmap2, dmap2i);
+		
+		ImageI32 outi = new ImageI32(out.getDimensions());
+		ImageUtils.round(out, outi);
+		
+		danielsson(dmap2i, outi);
+		
+		ImageUtils.convert(outi, out);
+	}
+	
+	/**
+	 * Calculates centers of locally maximal disks using Danielsson algorithm.
+	 * Integer version of danielsson(Image, Image).
+	 * 
+	 * @param dmap2 Squared Euclidean distance map of the input geometry.
+	 * @param out   Distance ridge. Squared distance values of pixels that
+	 *              correspond to centers of locally maximal disks are set to this
+	 *              image. Other values are not changed. Usually this image should
+	 *              be empty before calling this function.
+	 */
+	public static void danielsson(ImageI32 dmap2, ImageI32 out) throws InterruptedException {
+		danielsson(dmap2, out, Occupancy.all(dmap2.getDimensions()));
+	}
+	
+	/**
+	 * Calculates centers of locally maximal disks using Danielsson algorithm.
+	 * Skips pixel rows that do not contain foreground pixels.
+	 * 
+	 * @param dmap2     Squared Euclidean distance map of the input geometry.
+	 * @param out       Distance ridge, see danielsson(ImageI32, ImageI32).
+	 * @param occupancy Occupancy of the foreground (non-zero) pixels of dmap2.
+	 */
+	public static void danielsson(ImageI32 dmap2, ImageI32 out, Occupancy occupancy) throws InterruptedException {
 
-		int maxr2 = (int) Math.round(ImageUtils.max(dmap2));
-
-		ArrayList<Integer> table1 = new ArrayList<Integer>();
-		ArrayList<Integer> table2 = new ArrayList<Integer>();
-		ArrayList<Integer> table3 = new ArrayList<Integer>();
-
-		getDanielssonTables(table1, table2, table3, maxr2);
-
-		ThreadLocal<int[][][]> nbStore = new ThreadLocal<int[][][]>() {
-			@Override
-			protected int[][][] initialValue() {
-				return new int[3][3][3];
-			}
-		};
+		RidgePoints points = danielsson(dmap2, occupancy);
 
-		AtomicInteger progress = new AtomicInteger(0);
+		// Clear foreground pixels that are not ridge points.
 		Loop.withIndex(0, dmap2.depth(), new Loop.Each() {
 
 			@Override
 			public void run(long zl) {
-				
 				int z = (int)zl;
-				Vec3i ones = new Vec3i(1, 1, 1);
-				
+				int w = dmap2.width();
+				int[] slice = dmap2.getSlice(z);
+				int[] outSlice = out.getSlice(z);
 				for (int y = 0; y < dmap2.height(); y++) {
-					for (int x = 0; x < dmap2.width(); x++) {
-
-						//Vec3c pos = new Vec3c(x, y, z);
-
-						float cf = dmap2.get(x, y, z);
-						int c = (int) Math.round(cf);
-						if (c != 0) {
-							int[][][] nb = nbStore.get();
-
-							getNeighbourhoodZero(dmap2, x, y, z, ones, nb);
-
-							// Check all neighbours
-							if (!(
-								// 6-neighbours, one coordinate changes by one pixel.
-								table1.get(nb[0][1][1]) >= c || table1.get(nb[2][1][1]) >= c || table1.get(nb[1][0][1]) >= c
-										|| table1.get(nb[1][2][1]) >= c || table1.get(nb[1][1][0]) >= c
-										|| table1.get(nb[1][1][2]) >= c ||
-								// 18-neighbours but not 6-neighbours, two coordinates change by one pixel.
-								table2.get(nb[0][0][1]) >= c || table2.get(nb[0][2][1]) >= c || table2.get(nb[2][0][1]) >= c
-										|| table2.get(nb[2][2][1]) >= c || table2.get(nb[1][0][0]) >= c
-										|| table2.get(nb[1][0][2]) >= c || table2.get(nb[1][2][0]) >= c
-										|| table2.get(nb[1][2][2]) >= c || table2.get(nb[0][1][0]) >= c
-										|| table2.get(nb[0][1][2]) >= c || table2.get(nb[2][1][0]) >= c
-										|| table2.get(nb[2][1][2]) >= c ||
-								// Corners, three coordinates change by one pixel.
-								table3.get(nb[0][0][0]) >= c || table3.get(nb[0][2][0]) >= c || table3.get(nb[2][0][0]) >= c
-										|| table3.get(nb[2][2][0]) >= c || table3.get(nb[0][0][2]) >= c
-										|| table3.get(nb[0][2][2]) >= c || table3.get(nb[2][0][2]) >= c
-										|| table3.get(nb[2][2][2]) >= c)) {
-								// This is center of locally maximal sphere
-								out.set(x, y, z, c);
-							} else {
-								// Not a center of locally maximal sphere
-								out.set(x, y, z, 0);
-							}
-						}
-
+					for (int x = occupancy.getRowMinX(y, z); x <= occupancy.getRowMaxX(y, z); x++) {
+						if (slice[y * w + x] != 0)
+							outSlice[y * w + x] = 0;
 					}
 				}
-
-				IJ.showProgress(progress.incrementAndGet(), dmap2.depth());
 			}
 		});
 
+		points.toImage(out);
+	}
+
+	/**
+	 * Calculates centers of locally maximal disks using Danielsson algorithm, and returns them as a sparse list.
+	 * Skips pixel rows that do not contain foreground pixels.
+	 * 
+	 * @param dmap2     Squared Euclidean distance map of the input geometry.
+	 * @param occupancy Occupancy of the foreground (non-zero) pixels of dmap2.
+	 * @return Distance ridge, i.e. the centers of locally maximal spheres and their squared radii.
+	 */
+	public static RidgePoints danielsson(ImageI32 dmap2, Occupancy occupancy) throws InterruptedException {
+
+		RidgePoints points = new RidgePoints(dmap2.getDimensions());
+
+		RidgeExtractor extractor = new RidgeExtractor(points, occupancy);
+		extractor.addSquaredDistances(getSquaredDistances(dmap2, occupancy));
+		extractor.process(dmap2, 0, 0, dmap2.depth());
+		extractor.saveTables();
+
+		return points;
+	}
+
+	/**
+	 * Extracts distance ridge from a squared distance map whose slices become available in increasing z order,
+	 * e.g. while the last pass of the distance map calculation is running.
+	 * The Danielsson tables are read from the cache when they are needed first, and expanded in memory as new
+	 * squared distance values are added. The new entries are saved to the cache by saveTables.
+	 */
+	public static class RidgeExtractor {
+
+		/**
+		 * The output.
+		 */
+		private final RidgePoints out;
+
+		/**
+		 * Occupancy of the foreground pixels of the whole squared distance map.
+		 */
+		private final Occupancy occupancy;
+
+		/**
+		 * Bounding box of the foreground pixels.
+		 */
+		private final Vec3i min;
+		private final Vec3i max;
+
+		/**
+		 * All the squared distance values that have been added so far.
+		 */
+		private final BitSet radii2 = new BitSet();
+
+		/**
+		 * Danielsson tables that contain entries for all values in radii2.
+		 */
+		private int[][] tables = new int[][] { new int[0], new int[0], new int[0] };
+
+		/**
+		 * Indicates if the tables have been read from the cache, and if entries that are not saved to the cache
+		 * have been calculated.
+		 */
+		private boolean tablesRead = false;
+		private boolean tablesChanged = false;
+
+		/**
+		 * Per-thread storage for the slices of the slice windows. The storage is re-used in each call to process
+		 * so that it is not allocated again for each slab.
+		 */
+		private final ThreadLocal<int[][]> windowSlicesStore;
+
+		private final ThreadLocal<RidgePoints.SliceBuilder> builderStore;
+
+		private final AtomicInteger progress = new AtomicInteger(0);
+
+		/**
+		 * Constructor.
+		 * @param out       Ridge points are placed here. Slices that are not processed are not changed.
+		 * @param occupancy Occupancy of the foreground (non-zero) pixels of the whole squared distance map.
+		 */
+		public RidgeExtractor(RidgePoints out, Occupancy occupancy) {
+			this.out = out;
+			this.occupancy = occupancy;
+			min = occupancy.getMin();
+			max = occupancy.getMax();
+
+			windowSlicesStore = new ThreadLocal<int[][]>() {
+				@Override
+				protected int[][] initialValue() {
+					return SliceWindow.allocate(min, max);
+				}
+			};
+
+			builderStore = new ThreadLocal<RidgePoints.SliceBuilder>() {
+				@Override
+				protected RidgePoints.SliceBuilder initialValue() {
+					return new RidgePoints.SliceBuilder(out.height());
+				}
+			};
+		}
+
+		/**
+		 * Adds squared distance values that may be found in the slices that are processed next.
+		 * Zero and values that have already been added are ignored.
+		 * @param values Set of the values.
+		 */
+		public void addSquaredDistances(BitSet values) throws InterruptedException {
+			int oldCount = radii2.cardinality();
+			radii2.or(values);
+			radii2.clear(0);
+			if (radii2.cardinality() == oldCount)
+				return;
+
+			int[] r2 = radii2.stream().toArray();
+			if (DanielssonTableCache.containsAll(tables, r2))
+				return;
+
+			if (!tablesRead) {
+				tables = DanielssonTableCache.read(r2);
+				tablesRead = true;
+			}
+
+			if (!DanielssonTableCache.containsAll(tables, r2)) {
+				tables = expandDanielssonTables(tables, r2);
+				tablesChanged = true;
+			}
+		}
+
+		/**
+		 * Adds the Danielsson table entries calculated by this extractor to the cache.
+		 * Call this after the last slices have been processed.
+		 */
+		public void saveTables() {
+			if (tablesChanged) {
+				DanielssonTableCache.update(tables);
+				tablesChanged = false;
+			}
+		}
+
+		/**
+		 * Extracts ridge points of slices [startZ, endZ[.
+		 * All the squared distance values in slices startZ - 1 ... endZ must have been added using addSquaredDistances.
+		 * @param slices      Image that contains the slices startZ - 1 ... endZ of the squared distance map,
+		 *                    except those that are outside of the map.
+		 * @param sliceOffset z-coordinate of the first slice of the slices image in the whole squared distance map.
+		 * @param startZ      First slice to process.
+		 * @param endZ        One past the last slice to process.
+		 */
+		public void process(ImageI32 slices, int sliceOffset, int startZ, int endZ) throws InterruptedException {
+
+			// Slices outside of the bounding box do not contain ridge points.
+			startZ = Math.max(startZ, min.z);
+			endZ = Math.min(endZ, max.z + 1);
+			if (startZ >= endZ)
+				return;
+
+			int[] table1 = tables[0];
+			int[] table2 = tables[1];
+			int[] table3 = tables[2];
+
+			// The windows are created for each call, as the slices processed by each thread in different calls
+			// are usually not consecutive.
+			ThreadLocal<SliceWindow> windowStore = new ThreadLocal<SliceWindow>() {
+				@Override
+				protected SliceWindow initialValue() {
+					return new SliceWindow(slices, sliceOffset, out.depth(), min, max, windowSlicesStore.get());
+				}
+			};
+
+			Loop.withIndex(startZ, endZ, new Loop.Each() {
+
+				@Override
+				public void run(long zl) {
+
+					int z = (int)zl;
+
+					// Loop.withIndex processes consecutive slices in the same thread, so
+					// usually only slice z + 1 is not in the window yet.
+					SliceWindow window = windowStore.get();
+					int[] prev = window.get(z - 1);
+					int[] curr = window.get(z);
+					int[] next = window.get(z + 1);
+					int s = window.getStride();
+					RidgePoints.SliceBuilder builder = builderStore.get();
+					builder.clear();
+
+					for (int y = 0; y < out.height(); y++) {
+						int i = window.getIndex(occupancy.getRowMinX(y, z), y);
+						for (int x = occupancy.getRowMinX(y, z); x <= occupancy.getRowMaxX(y, z); x++, i++) {
+
+							int c = curr[i];
+							if (c != 0) {
+
+								// Check all neighbours.
+								// The tests are ordered so that the neighbours most likely to cover the
+								// sphere at the current pixel are tested first: 6-neighbours, then
+								// 18-neighbours and finally corners.
+								if (!(
+									// 6-neighbours, one coordinate changes by one pixel.
+									covers(table1, curr[i - 1], c) || covers(table1, curr[i + 1], c) || covers(table1, curr[i - s], c)
+											|| covers(table1, curr[i + s], c) || covers(table1, prev[i], c)
+											|| covers(table1, next[i], c) ||
+									// 18-neighbours but not 6-neighbours, two coordinates change by one pixel.
+									covers(table2, curr[i - s - 1], c) || covers(table2, curr[i + s - 1], c) || covers(table2, curr[i - s + 1], c)
+											|| covers(table2, curr[i + s + 1], c) || covers(table2, prev[i - s], c)
+											|| covers(table2, next[i - s], c) || covers(table2, prev[i + s], c)
+											|| covers(table2, next[i + s], c) || covers(table2, prev[i - 1], c)
+											|| covers(table2, next[i - 1], c) || covers(table2, prev[i + 1], c)
+											|| covers(table2, next[i + 1], c) ||
+									// Corners, three coordinates change by one pixel.
+									covers(table3, prev[i - s - 1], c) || covers(table3, prev[i + s - 1], c) || covers(table3, prev[i - s + 1], c)
+											|| covers(table3, prev[i + s + 1], c) || covers(table3, next[i - s - 1], c)
+											|| covers(table3, next[i + s - 1], c) || covers(table3, next[i - s + 1], c)
+											|| covers(table3, next[i + s + 1], c))) {
+									// This is center of locally maximal sphere
+									builder.add(x, c);
+								}
+							}
+
+						}
+						builder.endRow();
+					}
+
+					out.setSlice(z, builder);
+
+					IJ.showProgress(progress.incrementAndGet(), max.z - min.z + 1);
+				}
+			});
+		}
 	}
 
 	private ImagePlus iplus;
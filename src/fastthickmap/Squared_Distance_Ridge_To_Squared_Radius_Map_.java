@@ -1,18 +1,25 @@
 package fastthickmap;
 
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.ListIterator;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.DoubleAdder;
 
 import ij.IJ;
@@ -71,7 +78,7 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 	 * circleLookup[r2] stores the maximal squared radius of a circle that fits into
 	 * a circle of squared radius r2.
 	 */
-	private static ArrayList<Integer> circleLookup;
+	private static int[] circleLookup = new int[0];
 
 	/**
 	 * Builds lookup table that doesDiscretizedCircle1FitInto2Cached uses.
@@ -80,25 +87,28 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 	 */
 	private static void buildCircleLookup(int maxrSquare) {
 
-		if (circleLookup == null)
-			circleLookup = new ArrayList<Integer>();
+		int firstr2 = circleLookup.length;
+		if (firstr2 >= maxrSquare + 1)
+			return;
 
-		int firstr2 = circleLookup.size();
-		while (circleLookup.size() < maxrSquare + 1)
-			circleLookup.add(0);
+		// The table is replaced by a larger one only after it has been filled, so that the
+		// table is always complete.
+		int[] lookup = Arrays.copyOf(circleLookup, maxrSquare + 1);
 
 		for (int r2 = firstr2; r2 < maxrSquare + 1; r2++) {
 			// Find the maximal squared radius of a circle that fits into a circle of
 			// squared radius r2.
-			circleLookup.set(r2, r2);
+			lookup[r2] = r2;
 			int rdot2 = r2;
 			while (true) {
 				rdot2++;
 				if (!doesDiscretizedCircle1FitInto2(rdot2, r2))
 					break;
-				circleLookup.set(r2, rdot2);
+				lookup[r2] = rdot2;
 			}
 		}
+
+		circleLookup = lookup;
 	}
 
 	/**
@@ -108,7 +118,7 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 	 * or equal to r2Square.
 	 */
 	private static boolean doesDiscretizedCircle1FitInto2Cached(int r1Square, int r2Square) {
-		return r1Square <= circleLookup.get(r2Square);
+		return r1Square <= circleLookup[r2Square];
 	}
 
 	/**
@@ -119,249 +129,579 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 	// overhead.
 	// Thus we declare that RiStorageItem = int, where the two shorts are packed
 	// into.
+	// The item stores location of the center of the sphere relative to the pixel
+	// where the item is stored, so the size of the image is not limited by the
+	// range of short. The centers are always in the same z-slice than the pixel.
 //	private static class RiStorageItem {
 //		/**
-//		 * x and y coordinate of the center of the sphere that this item corresponds to.
+//		 * Pixel position minus position of the center of the sphere that this item corresponds to.
 //		 */
-//		short srcX, srcY;
+//		short dx, dy;
 //
-//		public RiStorageItem(short x, short y) {
-//			srcX = x;
-//			srcY = y;
+//		public RiStorageItem(short dx, short dy) {
+//			this.dx = dx;
+//			this.dy = dy;
 //		}
 //	};
 
+	/**
+	 * Largest supported squared radius of a sphere. Offsets from a pixel to the
+	 * center of a sphere that covers the pixel are smaller than the radius, so they
+	 * fit into shorts.
+	 */
+	private static final int MAX_R2 = (Short.MAX_VALUE + 1) * (Short.MAX_VALUE + 1);
+
 	/**
 	 * Packs two shorts into one int that is RiStorageItem.
 	 * 
-	 * @param srcX
-	 * @param srcY
+	 * @param dx
+	 * @param dy
 	 * @return
 	 */
-	private static int makeRiStorageItem(short srcX, short srcY) {
-		return ((int) srcX << 16) | (int) srcY;
+	private static int makeRiStorageItem(short dx, short dy) {
+		return ((int) dx << 16) | ((int) dy & 0xffff);
 	}
 
 	/**
-	 * Gets srcX component from int packed with makeRiStorageItem.
+	 * Gets dx component from int packed with makeRiStorageItem.
 	 * 
 	 * @param riStorageItem
 	 * @return
 	 */
-	private static short getSrcX(int riStorageItem) {
+	private static short getDx(int riStorageItem) {
 		return (short) (riStorageItem >> 16);
 	}
 
 	/**
-	 * Gets srcY component from int packed with makeRiStorageItem.
+	 * Gets dy component from int packed with makeRiStorageItem.
 	 * 
 	 * @param riStorageItem
 	 * @return
 	 */
-	private static short getSrcY(int riStorageItem) {
+	private static short getDy(int riStorageItem) {
 		return (short) (riStorageItem & 0xffff);
 	}
 
 	/**
-	 * Image that contains list of RiStorageItems in each pixel.
+	 * Converts RiStorageItem stored in one pixel to RiStorageItem that can be
+	 * stored in a pixel that is d pixels away in dimension dim. Items are stored
+	 * only in the first two dimensions, so dim must be 0 or 1.
+	 * 
+	 * @param riStorageItem
+	 * @param dim
+	 * @param d
+	 * @return
+	 */
+	private static int moveRiStorageItem(int riStorageItem, int dim, int d) {
+		if (dim == 0)
+			return makeRiStorageItem((short) (getDx(riStorageItem) + d), getDy(riStorageItem));
+		return makeRiStorageItem(getDx(riStorageItem), (short) (getDy(riStorageItem) + d));
+	}
+
+	/**
+	 * Image that contains list of RiStorageItems in each pixel. The image is
+	 * divided into pixel lines in one direction, and the items of each line are
+	 * stored in compressed sparse row format: one array of items and one array of
+	 * offsets where the items of each pixel start. This avoids the overhead of
+	 * separate array object for each pixel.
 	 * 
 	 * @author miettinen_a
 	 *
 	 */
 	private static class RiImage extends ImageBase {
 		/**
-		 * The first array stores z-slices of the image (length = depth). The second
-		 * array stores each slice (length = width * height). Each pixel stores array of
-		 * ints (length = varying).
+		 * Direction of the pixel lines.
 		 */
-		private int[][][] data;
+		private int lineDim;
 
-		public RiImage(Vec3i dimensions) {
+		/**
+		 * items[line] stores the items of all pixels in the line, or null if the line
+		 * does not contain any items. Items of pixel i of the line are stored in
+		 * items[line][offsets[line][i]] to items[line][offsets[line][i + 1] - 1].
+		 */
+		private int[][] items;
+		private int[][] offsets;
+
+		public RiImage(Vec3i dimensions, int lineDim) {
 			super(dimensions);
-			// NOTE: Raw array is a bit faster to initialize than ArrayList,
-			// and we don't need to resize the array anywhere.
-			data = new int[depth()][width() * height()][];
+			this.lineDim = lineDim;
+			long lineCount = pixelCount() / getDimension(lineDim);
+			items = new int[(int) lineCount][];
+			offsets = new int[(int) lineCount][];
+		}
+
+		public int getLineDimension() {
+			return lineDim;
+		}
+
+		/**
+		 * Gets index of the line that contains pixel (x, y, z).
+		 */
+		public int getLineIndex(int x, int y, int z) {
+			switch (lineDim) {
+			case 0:
+				return y + z * height();
+			case 1:
+				return x + z * width();
+			default:
+				return x + y * width();
+			}
+		}
+
+		/**
+		 * Gets the item array of the line that contains pixel (x, y, z), or null if
+		 * the line does not contain any items. The items of the pixel are in indices
+		 * [getStart(x, y, z), getEnd(x, y, z)[.
+		 */
+		public int[] getItems(int x, int y, int z) {
+			return items[getLineIndex(x, y, z)];
+		}
+
+		public int getStart(int x, int y, int z) {
+			int[] lineOffsets = offsets[getLineIndex(x, y, z)];
+			if (lineOffsets == null)
+				return 0;
+			return lineOffsets[lineDim == 0 ? x : (lineDim == 1 ? y : z)];
 		}
 
-		public int[] get(Vec3i pos) {
-			return data[pos.z][pos.y * width() + pos.x];
+		public int getEnd(int x, int y, int z) {
+			int[] lineOffsets = offsets[getLineIndex(x, y, z)];
+			if (lineOffsets == null)
+				return 0;
+			return lineOffsets[(lineDim == 0 ? x : (lineDim == 1 ? y : z)) + 1];
 		}
 
-		public int[] get(int x, int y, int z) {
-			return data[z][y * width() + x];
+		/**
+		 * Sets items of all pixels in a line.
+		 * 
+		 * @param line        Index of the line.
+		 * @param lineOffsets Offsets array, length = line length + 1.
+		 * @param lineItems   Items of the pixels of the line.
+		 */
+		public void setLine(int line, int[] lineOffsets, int[] lineItems) {
+			if (lineItems.length <= 0) {
+				clearLine(line);
+			} else {
+				offsets[line] = lineOffsets;
+				items[line] = lineItems;
+			}
 		}
 
-		public void set(Vec3i pos, int[] items) {
-			data[pos.z][pos.y * width() + pos.x] = items;
+		/**
+		 * Sets items of all pixels in a line.
+		 * 
+		 * @param line Index of the line.
+		 * @param row  row[i] contains the items of pixel i of the line.
+		 */
+		public void setLine(int line, RiSuperList[] row) {
+			int[] lineOffsets = new int[row.length + 1];
+			for (int i = 0; i < row.length; i++)
+				lineOffsets[i + 1] = lineOffsets[i] + row[i].size;
+
+			int[] lineItems = new int[lineOffsets[row.length]];
+			for (int i = 0; i < row.length; i++)
+				System.arraycopy(row[i].src, 0, lineItems, lineOffsets[i], row[i].size);
+
+			setLine(line, lineOffsets, lineItems);
 		}
 
-		public void set(int x, int y, int z, int[] items) {
-			data[z][y * width() + x] = items;
+		/**
+		 * Removes all items of a line, e.g. in order to free memory once the line is
+		 * not needed anymore.
+		 */
+		public void clearLine(int line) {
+			offsets[line] = null;
+			items[line] = null;
 		}
 	}
 
 	private static class Box {
 		private Vec3i pos;
-		// private Vec3c size;
+		private Vec3i size;
 
 		public Box(Vec3i pos, Vec3i size) {
 			this.pos = pos;
-			// this.size = size;
+			this.size = size;
 		}
 	}
 
-	private static class ActiveSpheresSuperItem implements Comparable<ActiveSpheresSuperItem> {
-		/*
-		 * Squared radius of the sphere that initiated creation of this extent.
+	/**
+	 * List of (R2, ri2, srcX, srcY) items, i.e. spheres and their squared extents
+	 * in the next dimension, stored in parallel primitive arrays. The items are
+	 * sorted by R2 in descending order and then by ri2 in descending order. The
+	 * lists are re-used from row to row and their capacity grows as needed, so
+	 * that processing does not allocate memory once the lists are large enough.
+	 */
+	private static class RiSuperList {
+		/**
+		 * Squared radius of the sphere that initiated creation of each extent.
 		 */
-		public int R2;
+		public int[] R2 = new int[4];
 
-		/*
-		 * Squared extent of the sphere in the current dimension.
+		/**
+		 * Squared extent of the sphere in the next dimension.
 		 */
-		public int ri2;
+		public int[] ri2 = new int[4];
 
-		/*
-		 * Center point of the sphere in the current dimension. This must be signed in
-		 * order to support block-wise processing.
+		/**
+		 * Location of the center of the sphere relative to the pixel where the list
+		 * is stored, packed into RiStorageItem.
 		 */
-		public int xi;
+		public int[] src = new int[4];
+
+		public int size = 0;
+
+		public void clear() {
+			size = 0;
+		}
+
+		public void add(int R2, int ri2, int src) {
+			if (size >= this.R2.length) {
+				int newCapacity = 2 * this.R2.length;
+				this.R2 = Arrays.copyOf(this.R2, newCapacity);
+				this.ri2 = Arrays.copyOf(this.ri2, newCapacity);
+				this.src = Arrays.copyOf(this.src, newCapacity);
+			}
+			this.R2[size] = R2;
+			this.ri2[size] = ri2;
+			this.src[size] = src;
+			size++;
+		}
+
+		public void set(int n, int R2, int ri2, int src) {
+			this.R2[n] = R2;
+			this.ri2[n] = ri2;
+			this.src[n] = src;
+		}
+	}
+
+	/**
+	 * List of active spheres, i.e. (R2, ri2, xi, src) items stored in parallel
+	 * primitive arrays. src is the location of the center of the sphere relative
+	 * to xi, packed into RiStorageItem. See RiSuperList.
+	 */
+	private static class ActiveSpheresSuperList {
+		public int[] R2 = new int[4];
+		public int[] ri2 = new int[4];
+		public int[] xi = new int[4];
+		public int[] src = new int[4];
+		public int size = 0;
+
+		public void clear() {
+			size = 0;
+		}
+
+		public void add(int R2, int ri2, int xi, int src) {
+			if (size >= this.R2.length) {
+				int newCapacity = 2 * this.R2.length;
+				this.R2 = Arrays.copyOf(this.R2, newCapacity);
+				this.ri2 = Arrays.copyOf(this.ri2, newCapacity);
+				this.xi = Arrays.copyOf(this.xi, newCapacity);
+				this.src = Arrays.copyOf(this.src, newCapacity);
+			}
+			this.R2[size] = R2;
+			this.ri2[size] = ri2;
+			this.xi[size] = xi;
+			this.src[size] = src;
+			size++;
+		}
+	}
+
+	private static class TempArrays {
+		public ActiveSpheresSuperList activeSpheres = new ActiveSpheresSuperList();
+		public ActiveSpheresSuperList activeSpheresTmp = new ActiveSpheresSuperList();
+		public RiSuperList resultTmp = new RiSuperList();
+		public RiSuperList resultTmp2 = new RiSuperList();
+
+		public ActiveSpheresBucketQueue activeSpheresPrio = new ActiveSpheresBucketQueue();
+		public Vec3i pos = new Vec3i(0, 0, 0);
+	}
+
+	/**
+	 * Priority queue of active spheres for singlePassFinalSuper. The items are
+	 * placed into buckets according to their key, and the highest non-empty bucket
+	 * is found using a hierarchy of bitmaps, where each bit tells if the
+	 * corresponding word of the level below is non-zero. The key of an item is the
+	 * rank of its R2 among the distinct R2 values of the block, so the count of
+	 * buckets does not depend on the magnitude of R2. All data is stored in
+	 * primitive arrays that are re-used from row to row, so adding and removing
+	 * items does not allocate memory.
+	 * 
+	 * The order of items that have the same R2 is not defined, but that does not
+	 * matter as only R2 of the top item is written to the output.
+	 */
+	private static class ActiveSpheresBucketQueue {
+		/**
+		 * Key, squared radius, squared extent and center point of each item.
+		 */
+		private int[] keys = new int[16];
+		private int[] R2 = new int[16];
+		private int[] ri2 = new int[16];
+		private int[] xi = new int[16];
+
+		/**
+		 * Index of the next item in the same bucket, or -1.
+		 */
+		private int[] next = new int[16];
+
+		/**
+		 * Count of items added since the last call to clear.
+		 */
+		private int size = 0;
+
+		/**
+		 * heads[key] is index of the first item in bucket key, or -1 if the bucket is
+		 * empty.
+		 */
+		private int[] heads = new int[0];
+
+		/**
+		 * bits[0] contains one bit for each bucket, and bits[l + 1] contains one bit
+		 * for each word of bits[l]. The last level contains one word.
+		 */
+		private long[][] bits = new long[][] { new long[1] };
 
 		/**
-		 * x and y coordinate of the center of the sphere that this item corresponds to.
+		 * Removes all items from the queue and makes sure that items whose key is
+		 * less than keyCount can be added.
 		 */
-		public short srcX;
-		public short srcY;
-
-		public ActiveSpheresSuperItem(int R2, int ri2, int xi, short srcX, short srcY) {
-			this.R2 = R2;
-			this.ri2 = ri2;
-			this.xi = xi;
-			this.srcX = srcX;
-			this.srcY = srcY;
+		public void clear(int keyCount) {
+			for (int n = 0; n < size; n++) {
+				int key = keys[n];
+				heads[key] = -1;
+				for (int l = 0; l < bits.length; l++) {
+					bits[l][key >>> 6] = 0;
+					key >>>= 6;
+				}
+			}
+			size = 0;
+
+			if (keyCount > heads.length) {
+				// The key count is the same for all rows of a block, so the capacity is not
+				// grown in steps.
+				int capacity = keyCount;
+				heads = new int[capacity];
+				Arrays.fill(heads, -1);
+
+				ArrayList<long[]> levels = new ArrayList<long[]>();
+				int count = capacity;
+				do {
+					count = (count + 63) >>> 6;
+					levels.add(new long[count]);
+				} while (count > 1);
+				bits = levels.toArray(new long[levels.size()][]);
+			}
 		}
 
-		@Override
-		public int compareTo(ActiveSpheresSuperItem b) {
-			if (this.R2 != b.R2)
-				// return this.R2 > b.R2;
-				return -(this.R2 - b.R2);
-			// return this.ri2 > b.ri2;
-			return -(this.ri2 - b.ri2);
+		public boolean isEmpty() {
+			return bits[bits.length - 1][0] == 0;
 		}
-	};
 
-	private static class RiSuperItem implements Comparable<RiSuperItem> {
 		/**
-		 * Squared radius of the sphere that initiated creation of this extent.
+		 * Adds an item. Items with larger key must have larger R2.
 		 */
-		public int R2;
+		public void add(int key, int R2, int ri2, int xi) {
+			if (size >= this.R2.length) {
+				int newCapacity = 2 * this.R2.length;
+				keys = Arrays.copyOf(keys, newCapacity);
+				this.R2 = Arrays.copyOf(this.R2, newCapacity);
+				this.ri2 = Arrays.copyOf(this.ri2, newCapacity);
+				this.xi = Arrays.copyOf(this.xi, newCapacity);
+				this.next = Arrays.copyOf(this.next, newCapacity);
+			}
+			keys[size] = key;
+			this.R2[size] = R2;
+			this.ri2[size] = ri2;
+			this.xi[size] = xi;
+			next[size] = heads[key];
+			heads[key] = size;
+			size++;
+
+			// Mark the bucket non-empty. Upper levels need to be updated only if the word was
+			// zero before.
+			for (int l = 0; l < bits.length; l++) {
+				long word = bits[l][key >>> 6];
+				bits[l][key >>> 6] = word | (1L << (key & 63));
+				if (word != 0)
+					break;
+				key >>>= 6;
+			}
+		}
 
 		/**
-		 * Squared extent of the sphere in the next dimension.
+		 * Finds the highest non-empty bucket. Assumes that the queue is not empty.
 		 */
-		public int ri2;
+		private int topKey() {
+			int key = 0;
+			for (int l = bits.length - 1; l >= 0; l--)
+				key = (key << 6) | (63 - Long.numberOfLeadingZeros(bits[l][key]));
+			return key;
+		}
 
 		/**
-		 * x and y coordinate of the center of the sphere that this item corresponds to.
+		 * Gets index of an item with the largest R2. Assumes that the queue is not
+		 * empty.
 		 */
-		public short srcX;
-		public short srcY;
-
-		public RiSuperItem(int R2, int ri2, short srcX, short srcY) {
-			this.R2 = R2;
-			this.ri2 = ri2;
-			this.srcX = srcX;
-			this.srcY = srcY;
+		public int peek() {
+			return heads[topKey()];
 		}
 
-		@Override
-		public int compareTo(RiSuperItem b) {
-			if (this.R2 != b.R2)
-				return -(this.R2 - b.R2);
-			return -(this.ri2 - b.ri2);
+		/**
+		 * Removes the item returned by peek.
+		 */
+		public void remove() {
+			int key = topKey();
+			heads[key] = next[heads[key]];
+			if (heads[key] < 0) {
+				// The bucket became empty. Upper levels need to be updated only if the word
+				// becomes zero.
+				for (int l = 0; l < bits.length; l++) {
+					long word = bits[l][key >>> 6] & ~(1L << (key & 63));
+					bits[l][key >>> 6] = word;
+					if (word != 0)
+						break;
+					key >>>= 6;
+				}
+			}
 		}
-	};
 
-	private static class TempArrays {
-		public ArrayList<ActiveSpheresSuperItem> activeSpheres = new ArrayList<ActiveSpheresSuperItem>(40);
-		public ArrayList<ActiveSpheresSuperItem> activeSpheresTmp = new ArrayList<ActiveSpheresSuperItem>(40);
-		public ArrayList<ActiveSpheresSuperItem> Ctmp = new ArrayList<ActiveSpheresSuperItem>(40);
-		public ArrayList<RiSuperItem> resultTmp = new ArrayList<RiSuperItem>(40);
-		public ArrayList<RiSuperItem> resultTmp2 = new ArrayList<RiSuperItem>(40);
+		public int getR2(int item) {
+			return R2[item];
+		}
+
+		public int getRi2(int item) {
+			return ri2[item];
+		}
+
+		public int getXi(int item) {
+			return xi[item];
+		}
+	}
 
-		public PriorityQueue<ActiveSpheresSuperItem> activeSpheresPrio = new PriorityQueue<ActiveSpheresSuperItem>();
+	/**
+	 * Tests if item (R2a, ri2a) is before item (R2b, ri2b) in the sort order of
+	 * RiSuperList and ActiveSpheresSuperList, i.e. if R2a > R2b, or R2a == R2b and
+	 * ri2a > ri2b.
+	 */
+	private static boolean isBefore(int R2a, int ri2a, int R2b, int ri2b) {
+		return R2a > R2b || (R2a == R2b && ri2a > ri2b);
+	}
+
+	/**
+	 * Adds items in C (sphere centers at location x) to sorted list of active
+	 * spheres. Equal items of active are placed before those of C.
+	 * 
+	 * @param C      Sphere centers.
+	 * @param x      Location of the centers in the current dimension.
+	 * @param active Active spheres.
+	 * @param target The merged list is placed here.
+	 */
+	private static void merge(RiSuperList C, int x, ActiveSpheresSuperList active, ActiveSpheresSuperList target) {
+		target.clear();
+
+		int i = 0;
+		int j = 0;
+		while (i < C.size && j < active.size) {
+			if (isBefore(C.R2[i], C.ri2[i], active.R2[j], active.ri2[j])) {
+				target.add(C.R2[i], C.ri2[i], x, C.src[i]);
+				i++;
+			} else {
+				target.add(active.R2[j], active.ri2[j], active.xi[j], active.src[j]);
+				j++;
+			}
+		}
+
+		for (; i < C.size; i++)
+			target.add(C.R2[i], C.ri2[i], x, C.src[i]);
+
+		for (; j < active.size; j++)
+			target.add(active.R2[j], active.ri2[j], active.xi[j], active.src[j]);
+	}
+
+	/**
+	 * Merges two sorted ri lists. Equal items of b are placed before those of a.
+	 * 
+	 * @param a
+	 * @param b
+	 * @param target The merged list is placed here.
+	 */
+	private static void merge(RiSuperList a, RiSuperList b, RiSuperList target) {
+		target.clear();
+
+		int i = 0;
+		int j = 0;
+		while (i < a.size && j < b.size) {
+			if (isBefore(a.R2[i], a.ri2[i], b.R2[j], b.ri2[j])) {
+				target.add(a.R2[i], a.ri2[i], a.src[i]);
+				i++;
+			} else {
+				target.add(b.R2[j], b.ri2[j], b.src[j]);
+				j++;
+			}
+		}
+
+		for (; i < a.size; i++)
+			target.add(a.R2[i], a.ri2[i], a.src[i]);
+
+		for (; j < b.size; j++)
+			target.add(b.R2[j], b.ri2[j], b.src[j]);
 	}
 
 	/**
 	 * @param centers       Image containing only the row to be processed before
 	 *                      first call to this method.
 	 * @param ri            Full ri image that will be updated.
-	 * @param rowStart      Start point of the pixel row to be processed.
+	 * @param dimensions    Dimensions of the block.
 	 * @param dim           Dimension that we are processing.
 	 * @param step          +1 or -1 to indicate the direction of the pass.
-	 * @param activeSpheres List containing initial active spheres for the row. At
-	 *                      exit, contains list of active spheres after processing
-	 *                      the row.
+	 * @param tempArrays    Temporary buffers of the current thread.
 	 */
-	private static void singlePassSuper(ArrayList<ArrayList<RiSuperItem>> centers, ArrayList<ArrayList<RiSuperItem>> ri,
-			int dimensionality, Vec3i dimensions, Vec3i rowStart, int dim, int step, TempArrays tempArrays) {
+	private static void singlePassSuper(RiSuperList[] centers, RiSuperList[] ri, int dimensionality, Vec3i dimensions,
+			int dim, int step, TempArrays tempArrays) {
 
 		// Stores the spheres that have been encountered and that have not been passed
 		// yet.
 		// Stores the center point, original radius, and ri.
-		ArrayList<ActiveSpheresSuperItem> activeSpheres = tempArrays.activeSpheres;
-		ArrayList<ActiveSpheresSuperItem> activeSpheresTmp = tempArrays.activeSpheresTmp;
-		ArrayList<ActiveSpheresSuperItem> Ctmp = tempArrays.Ctmp;
+		ActiveSpheresSuperList activeSpheres = tempArrays.activeSpheres;
+		ActiveSpheresSuperList activeSpheresTmp = tempArrays.activeSpheresTmp;
 
-		ArrayList<RiSuperItem> resultTmp = tempArrays.resultTmp;
-		ArrayList<RiSuperItem> resultTmp2 = tempArrays.resultTmp2;
+		RiSuperList resultTmp = tempArrays.resultTmp;
+		RiSuperList resultTmp2 = tempArrays.resultTmp2;
 
 		activeSpheres.clear();
 		activeSpheresTmp.clear();
-		Ctmp.clear();
 		resultTmp.clear();
 		resultTmp2.clear();
 
 		// Set start point to the start or to the end of the current row.
-		Vec3i p = new Vec3i(rowStart);
-		if (step < 0)
-			p.inc(dim, dimensions.get(dim) - 1);
+		int size = dimensions.get(dim);
+		int x = step < 0 ? size - 1 : 0;
 
-		for (int i = 0; i < dimensions.get(dim); i++, p.inc(dim, step)) {
-			int x = (int) p.get(dim);
+		for (int i = 0; i < size; i++, x += step) {
 
 			// If there is one or more sphere centers at the current location, add them to
 			// the set of active spheres.
-			ArrayList<RiSuperItem> C = centers.get((int) p.get(dim));
-
-			// The C list is sorted by R and so is activeSpheres list.
-			// Instead of finding place for each item, convert each item in C list to
-			// activeSpheres format (add x coordinate)
-			// and then merge the two sorted lists to construct the new activeSpheres list.
-			Ctmp.clear();
-			for (int n = 0; n < C.size(); n++) {
-				RiSuperItem item = C.get(n);
-				Ctmp.add(new ActiveSpheresSuperItem(item.R2, item.ri2, x, item.srcX, item.srcY));
-			}
-
-			ListUtils.merge(Ctmp, activeSpheres, activeSpheresTmp);
-			ArrayList<ActiveSpheresSuperItem> temp = activeSpheres;
+			// The C list is sorted by R and so is activeSpheres list, so the two sorted
+			// lists are merged to construct the new activeSpheres list.
+			merge(centers[x], x, activeSpheres, activeSpheresTmp);
+			ActiveSpheresSuperList temp = activeSpheres;
 			activeSpheres = activeSpheresTmp;
 			activeSpheresTmp = temp;
 
 			// Iterate through all active spheres and calculate radius for next dimension.
+			// Spheres that are not active anymore are removed by compacting the list in place.
 			resultTmp.clear();
-			ListIterator<ActiveSpheresSuperItem> it = activeSpheres.listIterator();
-			while (it.hasNext()) {
-				ActiveSpheresSuperItem item = it.next();
-
-				int Rorig2 = item.R2;
-				int R2 = item.ri2;
-				int cx = item.xi;
-
-				short origcx = item.srcX;
-				short origcy = item.srcY;
+			int[] activeR2 = activeSpheres.R2;
+			int[] activeri2 = activeSpheres.ri2;
+			int[] activexi = activeSpheres.xi;
+			int[] activesrc = activeSpheres.src;
+			int activeCount = 0;
+			for (int n = 0; n < activeSpheres.size; n++) {
+
+				int Rorig2 = activeR2[n];
+				int R2 = activeri2[n];
+				int cx = activexi[n];
+				int src = activesrc[n];
 
 				int dx = Math.abs(x - cx);
 
@@ -369,29 +709,36 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 				int rn2 = R2 - dx * dx;
 				if (rn2 > 0) {
 					// Insert ry2 into the list, but don't insert duplicates.
-					if (resultTmp.size() > 0 && Rorig2 == resultTmp.get(resultTmp.size() - 1).R2) {
+					// The center location is converted to be relative to the current pixel.
+					int last = resultTmp.size - 1;
+					if (last >= 0 && Rorig2 == resultTmp.R2[last]) {
 						// This is a duplicate R2 entry. Use the entry with the larger ri.
-						if (resultTmp.get(resultTmp.size() - 1).ri2 < rn2)
-							resultTmp.set(resultTmp.size() - 1, new RiSuperItem(Rorig2, rn2, origcx, origcy));
+						if (resultTmp.ri2[last] < rn2)
+							resultTmp.set(last, Rorig2, rn2, moveRiStorageItem(src, dim, x - cx));
 					} else {
-						resultTmp.add(new RiSuperItem(Rorig2, rn2, origcx, origcy));
+						resultTmp.add(Rorig2, rn2, moveRiStorageItem(src, dim, x - cx));
 					}
-				} else {
-					// ry is non-positive, i.e. dx >= R
-					// This sphere is not active anymore, so remove it from the list of active
-					// spheres.
-					it.remove();
+
+					activeR2[activeCount] = Rorig2;
+					activeri2[activeCount] = R2;
+					activexi[activeCount] = cx;
+					activesrc[activeCount] = src;
+					activeCount++;
 				}
+				// Otherwise ry is non-positive, i.e. dx >= R.
+				// This sphere is not active anymore, so it is not kept in the list of active
+				// spheres.
 			}
+			activeSpheres.size = activeCount;
 
 			// Rebuild ri list from resultTmp. Don't include those items that are hidden by
 			// other items.
-			if (resultTmp.size() > 0) {
+			if (resultTmp.size > 0) {
 				// Add ri from the previous pass to the ri list and save the result to
 				// resultTmp2.
 				// Note that both resultTmp2 and rilist are sorted so we can just merge them.
-				ArrayList<RiSuperItem> rilist = ri.get((int) p.get(dim));
-				ListUtils.merge(rilist, resultTmp, resultTmp2);
+				RiSuperList rilist = ri[x];
+				merge(rilist, resultTmp, resultTmp2);
 
 				// Linear time algorithm for finding relevant ri (those not hidden by other
 				// items).
@@ -400,11 +747,10 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 				// Non-hidden items satisfy R > R_prev || ri > ri_prev. The first condition is
 				// always true as we sort the list by R.
 				rilist.clear();
-				rilist.add(resultTmp2.get(0));
-				for (int n = 1; n < resultTmp2.size(); n++) {
-					int currri2 = rilist.get(rilist.size() - 1).ri2;
-					RiSuperItem resultTmp2n = resultTmp2.get(n);
-					int newri2 = resultTmp2n.ri2;
+				rilist.add(resultTmp2.R2[0], resultTmp2.ri2[0], resultTmp2.src[0]);
+				for (int n = 1; n < resultTmp2.size; n++) {
+					int currri2 = rilist.ri2[rilist.size - 1];
+					int newri2 = resultTmp2.ri2[n];
 
 					if (newri2 > currri2) // This is the basic condition that works always (but may include unnecessary
 											// items in the rilist)
@@ -414,24 +760,20 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 							// In the second last dimension only really visible spans are needed as there's
 							// no next dimension whose ri we would calculate based on the spans.
 							if (MathUtils.largestIntWhoseSquareIsLessThan(newri2) > MathUtils.largestIntWhoseSquareIsLessThan(currri2))
-								rilist.add(resultTmp2n);
+								rilist.add(resultTmp2.R2[n], newri2, resultTmp2.src[n]);
 						} else if (dim == dimensionality - 3) // 3 - 3 == 0 == 1st dimension
 						{
 							// In the third last dimension we know that only those spans are required that
 							// produce visible circles in the output.
 							if (!doesDiscretizedCircle1FitInto2Cached(newri2, currri2))
-								rilist.add(resultTmp2n);
+								rilist.add(resultTmp2.R2[n], newri2, resultTmp2.src[n]);
 						} else {
 							// Here we could insert test if discretized spheres fit into each other etc.
 							// etc.
-							rilist.add(resultTmp2n);
+							rilist.add(resultTmp2.R2[n], newri2, resultTmp2.src[n]);
 						}
 					}
 				}
-
-				// Make sure we don't use extraneous memory by storing empty items in each pixel
-				// of the ri image.
-				rilist.trimToSize();
 			}
 		}
 	}
@@ -447,21 +789,22 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 	 * @param rowStart             Start point of the pixel row to be processed.
 	 * @param dim                  Dimension that we are processing.
 	 * @param step                 +1 or -1 to indicate the direction of the pass.
-	 * @param initialActiveSpheres Initial active spheres list. Contains final
-	 *                             active spheres list at output. Set to nullptr to
-	 *                             assume empty list.
+	 * @param radii2               Distinct R2 values of the block in ascending
+	 *                             order. All the R2 values in centers must be
+	 *                             found in this array.
 	 */
-	private static void singlePassFinalSuper(ArrayList<ArrayList<RiSuperItem>> centers, Image result, Vec3i rowStart,
-			int dim, int step, Vec3i blockOrigin, TempArrays tempArrays) {
+	private static void singlePassFinalSuper(RiSuperList[] centers, ImageI32 result, Vec3i rowStart,
+			int dim, int step, Vec3i blockOrigin, int[] radii2, TempArrays tempArrays) {
 
 		// Stores the spheres that have been encountered and that have not been passed
 		// yet.
 		// Stores the sphere with the largest R at the top of the priority queue.
-		PriorityQueue<ActiveSpheresSuperItem> activeSpheres = tempArrays.activeSpheresPrio;
-		activeSpheres.clear();
+		ActiveSpheresBucketQueue activeSpheres = tempArrays.activeSpheresPrio;
+		activeSpheres.clear(radii2.length);
 
 		// Set start point to the start or end of the current row.
-		Vec3i p = new Vec3i(rowStart);
+		Vec3i p = tempArrays.pos;
+		p.set(rowStart);
 		if (step < 0)
 			p.inc(dim, result.getDimension(dim) - 1);
 
@@ -470,22 +813,25 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 
 			// If there is one or more sphere centers at the current location, add them to
 			// the set of active spheres.
-			ArrayList<RiSuperItem> C = centers.get((int) p.get(dim));
-			for (RiSuperItem item : C) {
-				activeSpheres.add(new ActiveSpheresSuperItem(item.R2, item.ri2, x, (short) 0, (short) 0));
+			RiSuperList C = centers[x];
+			for (int n = 0; n < C.size; n++) {
+				activeSpheres.add(Arrays.binarySearch(radii2, C.R2[n]), C.R2[n], C.ri2[n], x);
 			}
 
 			while (!activeSpheres.isEmpty()) {
-				ActiveSpheresSuperItem item = activeSpheres.peek();
+				int item = activeSpheres.peek();
 
-				int Rorig2 = item.R2;
-				int R2 = item.ri2;
-				int cx = item.xi;
+				int Rorig2 = activeSpheres.getR2(item);
+				int R2 = activeSpheres.getRi2(item);
+				int cx = activeSpheres.getXi(item);
 
-				int dx = Math.abs(x - cx);
+				// Spheres that are not active anymore are removed only when they are at the top of
+				// the queue, so dx may be much larger than the radius of the sphere and dx * dx
+				// must be calculated in long.
+				long dx = Math.abs(x - cx);
 
 				// Calculate new ri^2
-				int rn2 = R2 - dx * dx;
+				long rn2 = R2 - dx * dx;
 				if (rn2 > 0) {
 					// Note that previous pass may have assigned larger value to the output.
 					// Vec3c pp = p.add(blockOrigin);
@@ -507,38 +853,6 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 		}
 	}
 
-	/**
-	 * Copies squared sphere radius data from original centers image to ri image.
-	 * 
-	 * @param centers2 Original distance ridge.
-	 * @param ri       Temporary image that is to be initialized.
-	 * @param bounds   If the ri covers only a block of centers2, a box defining the
-	 *                 block. Pass Box from [0, 0, 0] to centers2.dimensions() to
-	 *                 prepare whole image.
-	 */
-	private static void prepareSuper(Image centers2, RiImage ri, Box bounds) {
-		if (centers2.getDimensions().max() >= Short.MAX_VALUE)
-			throw new IllegalArgumentException("Linear image size exceeds " + Short.MAX_VALUE
-					+ " pixels. This implementation is not configured for that big images.");
-
-		int bx = (int) bounds.pos.x;
-		int by = (int) bounds.pos.y;
-		int bz = (int) bounds.pos.z;
-
-		for (int z = 0; z < ri.depth(); z++) {
-			for (int y = 0; y < ri.height(); y++) {
-				for (int x = 0; x < ri.width(); x++) {
-					float R2 = centers2.get(bx + x, by + y, bz + z);
-
-					if (R2 > 0) {
-						ri.set(x, y, z, new int[] {
-								makeRiStorageItem((short) (x + bounds.pos.x), (short) (y + bounds.pos.y)) });
-					}
-				}
-			}
-		}
-	}
-
 	/**
 	 * Sets size[dim] = 0 and returns the result.
 	 */
@@ -548,105 +862,128 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 	}
 
 	/**
-	 * Converts RiStorageItem to RiSuperItem.
+	 * Converts RiStorageSet to RiSuperSet.
 	 * 
-	 * @param p Position (in the block) where the item is taken from.
+	 * @param ri          Image containing the source set.
+	 * @param p           Position (in the block) where the set is taken from.
+	 * @param centerIndex Index of the ridge points that contains the centers of
+	 *                    the spheres of the items.
 	 */
-	private static RiSuperItem toRiItem(int riStorageItem, Vec3i p, Vec3i blockPos, Image dmap2Full) {
-
-		short srcX = getSrcX(riStorageItem);
-		short srcY = getSrcY(riStorageItem);
-
-		// This version reads always from the full image (difference compared to c++
-		// version)
-		float R2f = dmap2Full.get(srcX, srcY, p.z + blockPos.z);
-		int R2 = (int) Math.round(R2f);
-		int dx = p.x - (srcX - blockPos.x);
-		int dy = p.y - (srcY - blockPos.y);
+	private static void toRiSet(RiImage ri, RiSuperList out, Vec3i p, Vec3i blockPos, RidgePointIndex centerIndex) {
+		out.clear();
+		int[] riStorageSet = ri.getItems(p.x, p.y, p.z);
+		if (riStorageSet != null) {
+			int end = ri.getEnd(p.x, p.y, p.z);
+			for (int n = ri.getStart(p.x, p.y, p.z); n < end; n++) {
+				int riStorageItem = riStorageSet[n];
+				int dx = getDx(riStorageItem);
+				int dy = getDy(riStorageItem);
 
-		int ri2 = R2 - dx * dx - dy * dy;
+				// This version reads always from the full ridge (difference compared to c++
+				// version)
+				int R2 = centerIndex.getR2(p.x + blockPos.x - dx, p.y + blockPos.y - dy, p.z + blockPos.z);
 
-		return new RiSuperItem(R2, ri2, srcX, srcY);
-	}
+				int ri2 = R2 - dx * dx - dy * dy;
 
-	/**
-	 * Converts RiSuperItem to RiStorageItem
-	 */
-	private static int toRiStorageItem(RiSuperItem item) {
-		return makeRiStorageItem(item.srcX, item.srcY);
+				out.add(R2, ri2, riStorageItem);
+			}
+		}
 	}
 
 	/**
-	 * Converts RiStorageSet to RiSuperSet.
+	 * Converts ridge points on an x-directional pixel row to RiSuperSets for the
+	 * first pass. This replaces reading ri image in the first dimension.
 	 * 
-	 * @param in Source set
-	 * @param p  Position (in the block) where the in set is taken from.
+	 * @param centers  Ridge points of the whole image.
+	 * @param out      out[x] is set to the RiSuperSet of pixel x of the row.
+	 * @param p        Start position (in the block) of the row.
+	 * @param blockPos Position of the block.
 	 */
-	private static void toRiSet(int[] riStorageSet, ArrayList<RiSuperItem> out, Vec3i p, Vec3i blockPos,
-			Image dmap2Full) {
-		out.clear();
-		if (riStorageSet != null) {
-			for (int n = 0; n < riStorageSet.length; n++)
-				out.add(toRiItem(riStorageSet[n], p, blockPos, dmap2Full));
+	private static void toRiSets(RidgePoints centers, RiSuperList[] out, Vec3i p, Vec3i blockPos) {
+		for (int x = 0; x < out.length; x++)
+			out[x].clear();
+
+		int y = p.y + blockPos.y;
+		int z = p.z + blockPos.z;
+		for (int n = centers.getRowStart(y, z); n < centers.getRowEnd(y, z); n++) {
+			int x = centers.getX(n, z) - blockPos.x;
+			if (x >= 0 && x < out.length) {
+				int R2 = centers.getR2(n, z);
+				out[x].add(R2, R2, makeRiStorageItem((short) 0, (short) 0));
+			}
 		}
 	}
 
-	/**
-	 * Converts RiSuperSet to RiStorageSet.
-	 */
-	private static int[] toStorageSet(ArrayList<RiSuperItem> in) {
-		if (in.size() <= 0)
-			return null;
-
-		int[] out = new int[in.size()];
-		for (int n = 0; n < in.size(); n++)
-			out[n] = toRiStorageItem(in.get(n));
-		return out;
-	}
-
 	/**
 	 * Makes one pass over image in specific dimension and direction.
 	 * 
-	 * @param ri               Image containing ri values from processing of
-	 *                         previous dimension.
+	 * @param in               Image containing ri values from processing of
+	 *                         previous dimension. Not used in the first
+	 *                         dimension. Lines of the image are removed once
+	 *                         they are not needed anymore.
+	 * @param out              Image where ri values of this dimension are
+	 *                         stored. The lines of the image must be in
+	 *                         direction dim. Not used in the final pass.
 	 * @param dim              Dimension to process.
+	 * @param centers          Distance ridge points of the whole image.
+	 * @param centerIndex      Index of the ridge points that contains the
+	 *                         centers of the spheres of the items in the input
+	 *                         image, and in the final pass all the centers of
+	 *                         the spheres that are processed. Not used in the
+	 *                         first dimension if it is not the final pass.
 	 * @param result           Result image.
-	 * @param showProgressInfo Set to true to show progress indicator.
+	 * @param occupancy        Pixel lines that do not contain any foreground pixels
+	 *                         are skipped.
 	 */
-	private static void processDimensionSuper(RiImage ri, int dim, Image dmap2, Image result, Box currBlock,
-			int dimensionality) throws InterruptedException {
+	private static void processDimensionSuper(RiImage in, RiImage out, int dim, RidgePoints centers, RidgePointIndex centerIndex,
+			ImageI32 result, Box currBlock, int dimensionality, Occupancy occupancy) throws InterruptedException {
 
-		// ri: for current block
-		// dmap2: for whole image
+		// in, out: for current block
+		// centers: for whole image
 		// result: for whole image
 
+		Vec3i blockPos = new Vec3i(currBlock.pos);
+		Vec3i blockSize = new Vec3i(currBlock.size);
+
 		// Determine count of pixels to process
-		Vec3i reducedDimensions = getReducedDimensions(ri.getDimensions(), dim);
+		Vec3i reducedDimensions = getReducedDimensions(new Vec3i(blockSize), dim);
 		long rowCount = (long) reducedDimensions.x * (long) reducedDimensions.y * (long) reducedDimensions.z;
 
-		Vec3i blockPos = new Vec3i(currBlock.pos);
+		// The rows are enumerated such that the rows that read the same lines of the
+		// input image are processed one after another: index n is divided into
+		// coordinate in the line direction of the input (a) and coordinate in the
+		// remaining dimension (t). Once all rows with the same t have been processed,
+		// the corresponding lines of the input image can be removed.
+		int a = in != null ? in.getLineDimension() : (dim + 1) % 3;
+		int t = 3 - a - dim;
+		int rowsPerGroup = blockSize.get(a);
+		AtomicIntegerArray groupProgress = new AtomicIntegerArray(blockSize.get(t));
 
 		boolean isFinalPass = !(dim < dimensionality - 1);
 
+		// The active spheres of the final pass are ordered by the rank of their R2 among
+		// the distinct R2 values of the block.
+		int[] finalRadii2 = isFinalPass ? centerIndex.getDistinctR2() : null;
+
 		AtomicInteger progress = new AtomicInteger(0);
 
 		// Temporary buffers
-		ThreadLocal<ArrayList<ArrayList<RiSuperItem>>> inRowStore = new ThreadLocal<ArrayList<ArrayList<RiSuperItem>>>() {
+		ThreadLocal<RiSuperList[]> inRowStore = new ThreadLocal<RiSuperList[]>() {
 			@Override
-			protected ArrayList<ArrayList<RiSuperItem>> initialValue() {
-				ArrayList<ArrayList<RiSuperItem>> result = new ArrayList<ArrayList<RiSuperItem>>();
-				for (int n = 0; n < ri.getDimension(dim); n++)
-					result.add(new ArrayList<RiSuperItem>());
+			protected RiSuperList[] initialValue() {
+				RiSuperList[] result = new RiSuperList[blockSize.get(dim)];
+				for (int n = 0; n < result.length; n++)
+					result[n] = new RiSuperList();
 				return result;
 			}
 		};
 
-		ThreadLocal<ArrayList<ArrayList<RiSuperItem>>> outRowStore = new ThreadLocal<ArrayList<ArrayList<RiSuperItem>>>() {
+		ThreadLocal<RiSuperList[]> outRowStore = new ThreadLocal<RiSuperList[]>() {
 			@Override
-			protected ArrayList<ArrayList<RiSuperItem>> initialValue() {
-				ArrayList<ArrayList<RiSuperItem>> result = new ArrayList<ArrayList<RiSuperItem>>();
-				for (int n = 0; n < ri.getDimension(dim); n++)
-					result.add(new ArrayList<RiSuperItem>());
+			protected RiSuperList[] initialValue() {
+				RiSuperList[] result = new RiSuperList[blockSize.get(dim)];
+				for (int n = 0; n < result.length; n++)
+					result[n] = new RiSuperList();
 				return result;
 			}
 		};
@@ -664,53 +1001,72 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 			@Override
 			public void run(long n) {
 
-				ArrayList<ArrayList<RiSuperItem>> inRow = inRowStore.get();
-				ArrayList<ArrayList<RiSuperItem>> outRow = outRowStore.get();
-				TempArrays tempArrays = tempArraysStore.get();
+				Vec3i start = new Vec3i(0, 0, 0);
+				start.set(a, (int) (n % rowsPerGroup));
+				start.set(t, (int) (n / rowsPerGroup));
+
+				// Lines that contain no foreground pixels cannot contain any spheres either.
+				if (!occupancy.isLineEmpty(dim, start.x + blockPos.x, start.y + blockPos.y, start.z + blockPos.z))
+					processRow(start);
 
-				Vec3i start = Image.indexToCoords(n, reducedDimensions);
+				// Remove the input lines that are not needed anymore.
+				if (in != null && groupProgress.incrementAndGet(start.get(t)) >= rowsPerGroup) {
+					Vec3i pos = new Vec3i(start);
+					for (int x = 0; x < blockSize.get(dim); x++, pos.inc(dim))
+						in.clearLine(in.getLineIndex(pos.x, pos.y, pos.z));
+				}
+
+				IJ.showProgress(progress.incrementAndGet(), (int) rowCount);
+			}
+
+			private void processRow(Vec3i start) {
+
+				RiSuperList[] inRow = inRowStore.get();
+				RiSuperList[] outRow = outRowStore.get();
+				TempArrays tempArrays = tempArraysStore.get();
 
 				// Make a copy of the current row as we update the row in the forward pass but
 				// need the original data in the backward pass.
+				// In the first dimension, the row is initialized directly from the ridge points.
+				if (dim == 0)
+					toRiSets(centers, inRow, start, blockPos);
+
 				Vec3i pos = new Vec3i(start);
-				for (int x = 0; x < ri.getDimension(dim); x++, pos.inc(dim)) {
-					toRiSet(ri.get(pos), inRow.get(x), pos, blockPos, dmap2);
-					outRow.get(x).clear();
+				for (int x = 0; x < blockSize.get(dim); x++, pos.inc(dim)) {
+					if (dim > 0)
+						toRiSet(in, inRow[x], pos, blockPos, centerIndex);
+					outRow[x].clear();
 				}
 
 				if (!isFinalPass) {
-					singlePassSuper(inRow, outRow, dmap2.getDimensionality(), ri.getDimensions(), start, dim, 1,
-							tempArrays);
-					singlePassSuper(inRow, outRow, dmap2.getDimensionality(), ri.getDimensions(), start, dim, -1,
-							tempArrays);
-
-					// Copy data back to storage
-					pos = start;
-					for (int x = 0; x < ri.getDimension(dim); x++, pos.inc(dim)) {
-						ri.set(pos, toStorageSet(outRow.get(x)));
-					}
+					singlePassSuper(inRow, outRow, dimensionality, blockSize, dim, 1, tempArrays);
+					singlePassSuper(inRow, outRow, dimensionality, blockSize, dim, -1, tempArrays);
+
+					// Copy data to storage
+					out.setLine(out.getLineIndex(start.x, start.y, start.z), outRow);
 				} else {
-					singlePassFinalSuper(inRow, result, start, dim, 1, blockPos, tempArrays);
-					singlePassFinalSuper(inRow, result, start, dim, -1, blockPos, tempArrays);
+					singlePassFinalSuper(inRow, result, start, dim, 1, blockPos, finalRadii2, tempArrays);
+					singlePassFinalSuper(inRow, result, start, dim, -1, blockPos, finalRadii2, tempArrays);
 				}
-
-				IJ.showProgress(progress.incrementAndGet(), (int) rowCount);
 			}
 		});
 	}
 
 	/**
-	 * Updates circleLookup array in order to be able to process the given image.
+	 * Updates circleLookup array in order to be able to process the given ridge
+	 * points.
 	 * 
-	 * @param dmap2
+	 * @param centers
+	 * @return Maximum squared radius of the ridge points.
 	 */
-	private static void buildCircleLookup(Image dmap2) throws InterruptedException {
-
-		float M = ImageUtils.max(dmap2);
-		if (M >= Integer.MAX_VALUE)
-			throw new IllegalArgumentException(
-					"The squared distance map contains too large values. (This error is easily avoidable by changing buildCircleLookup functionality.)");
-		buildCircleLookup((int) Math.round(M));
+	private static int buildCircleLookup(RidgePoints centers) throws InterruptedException {
+
+		int M = centers.max();
+		if (M > MAX_R2)
+			throw new IllegalArgumentException("The image contains spheres whose radius exceeds " + (Short.MAX_VALUE + 1)
+					+ " pixels. This implementation is not configured for that big spheres.");
+		buildCircleLookup(M);
+		return M;
 	}
 
 	/**
@@ -720,17 +1076,52 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 	 * @param tmap2 At output, squared radius map.
 	 * @throws InterruptedException
 	 */
-	public static void thickmap2SingleBlock(Image dmap2, Image tmap2) throws InterruptedException {
+	public static void thickmap2SingleBlock(ImageI32 dmap2, ImageI32 tmap2) throws InterruptedException {
+		thickmap2SingleBlock(dmap2, tmap2, Occupancy.all(dmap2.getDimensions()));
+	}
+
+	/**
+	 * Calculate squared local radius from squared distance map.
+	 * 
+	 * @param dmap2     Squared distance map.
+	 * @param tmap2     At output, squared radius map.
+	 * @param occupancy Occupancy of the foreground pixels. All the spheres defined
+	 *                  by dmap2 must be inside the non-empty pixel rows.
+	 * @throws InterruptedException
+	 */
+	public static void thickmap2SingleBlock(ImageI32 dmap2, ImageI32 tmap2, Occupancy occupancy) throws InterruptedException {
+		thickmap2SingleBlock(RidgePoints.of(dmap2, occupancy), tmap2, occupancy);
+	}
+
+	/**
+	 * Calculate squared local radius from distance ridge points.
+	 * 
+	 * @param centers   Distance ridge points.
+	 * @param tmap2     At output, squared radius map.
+	 * @param occupancy Occupancy of the foreground pixels. All the spheres defined
+	 *                  by the ridge points must be inside the non-empty pixel rows.
+	 * @throws InterruptedException
+	 */
+	public static void thickmap2SingleBlock(RidgePoints centers, ImageI32 tmap2, Occupancy occupancy) throws InterruptedException {
 
-		buildCircleLookup(dmap2);
+		buildCircleLookup(centers);
 
-		RiImage ri = new RiImage(dmap2.getDimensions());
-		Box fullBox = new Box(new Vec3i(0, 0, 0), dmap2.getDimensions());
-		prepareSuper(dmap2, ri, fullBox);
+		// The first pass reads the ridge points directly, so there is no input ri image.
+		RiImage ri = null;
+		Box fullBox = new Box(new Vec3i(0, 0, 0), centers.getDimensions());
 		ImageUtils.setValue(tmap2, 0);
 
-		for (int n = 0; n < dmap2.getDimensionality(); n++)
-			processDimensionSuper(ri, n, dmap2, tmap2, fullBox, dmap2.getDimensionality());
+		// The later passes look up the squared radii of the spheres of the ri items
+		// from the ridge points.
+		RidgePointIndex centerIndex = new RidgePointIndex(centers, 0, centers.height(), 0, centers.depth());
+
+		for (int n = 0; n < centers.getDimensionality(); n++) {
+			RiImage out = null;
+			if (n < centers.getDimensionality() - 1)
+				out = new RiImage(centers.getDimensions(), n);
+			processDimensionSuper(ri, out, n, centers, centerIndex, tmap2, fullBox, centers.getDimensionality(), occupancy);
+			ri = out;
+		}
 	}
 
 	/**
@@ -739,7 +1130,19 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 	 * @param dmap2
 	 * @return
 	 */
-	public static double calcNonZeroMeanR(Image dmap2) throws InterruptedException {
+	public static double calcNonZeroMeanR(ImageI32 dmap2) throws InterruptedException {
+		return calcNonZeroMeanR(dmap2, Occupancy.all(dmap2.getDimensions()));
+	}
+
+	/**
+	 * Calculates mean radius of non-zero pixels in squared distance map, reading
+	 * only those pixel rows that contain foreground pixels.
+	 * 
+	 * @param dmap2
+	 * @param occupancy
+	 * @return
+	 */
+	public static double calcNonZeroMeanR(ImageI32 dmap2, Occupancy occupancy) throws InterruptedException {
 
 		// Single-threaded version
 //		double sum = 0;
@@ -769,8 +1172,8 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 				double localCount = 0;
 
 				for (int y = 0; y < dmap2.height(); y++) {
-					for (int x = 0; x < dmap2.width(); x++) {
-						float pix = dmap2.get(x, y, iz);
+					for (int x = occupancy.getRowMinX(y, iz); x <= occupancy.getRowMaxX(y, iz); x++) {
+						int pix = dmap2.get(x, y, iz);
 						if (pix != 0) {
 							localSum += Math.sqrt(pix);
 							localCount++;
@@ -793,6 +1196,41 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 		return s;
 	}
 
+	/**
+	 * Calculates mean radius of distance ridge points.
+	 * 
+	 * @param centers
+	 * @return
+	 */
+	public static double calcNonZeroMeanR(RidgePoints centers) throws InterruptedException {
+
+		DoubleAdder sum = new DoubleAdder();
+
+		Loop.withIndex(0, centers.depth(), new Loop.Each() {
+
+			@Override
+			public void run(long z) {
+
+				int iz = (int) z;
+				double localSum = 0;
+
+				for (int n = 0; n < centers.getCount(iz); n++)
+					localSum += Math.sqrt(centers.getR2(n, iz));
+
+				sum.add(localSum);
+			}
+
+		});
+
+		double s = sum.sum();
+		long c = centers.getCount();
+
+		if (c > 0)
+			s /= c;
+
+		return s;
+	}
+
 	/**
 	 * Creates name (prefix) for a temporary file.
 	 * 
@@ -817,14 +1255,27 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 	 * @param meanr
 	 * @return
 	 */
-	private static double getMemoryRequirement(Vec3i dimensions, double meanr) {
+	private static double getMemoryRequirement(Vec3i dimensions, double meanr, int maxR2) {
 		// Memory requirement for C++ code is
 		// (4.5 + 0.2 * meanr) * dmap2.pixelCount() * sizeof(float)
-		// Here we don't have small vector optimization and additionally Java has
-		// big overhead for all objects, so make it pretty much larger!
+		// Here the ri images store one offset and the items of each pixel in compressed
+		// sparse row format, without per-pixel objects. The input and output ri images
+		// exist at the same time (though the input is released gradually), so there are
+		// two offsets per pixel, and one more int per pixel is reserved for the temporary
+		// buffers. The count of items per pixel is typically below 0.05 * meanr. The
+		// ridge point index of the block takes 12 bytes per 64 pixels, i.e. less than
+		// 0.05 floats per pixel, excluding the rows around the block.
+		// Additionally, each thread has a bucket queue for the final pass. It has one
+		// bucket for each distinct R2 in the block, i.e. at most maxR2 + 1 or one per
+		// pixel, and each bucket takes a little more than one int. The items of the
+		// queue are the items of one pixel row, five ints each.
 
 		final double FLOAT_SIZE = 4;
-		return (7 + 0.4 * meanr) * (double) dimensions.x * (double) dimensions.y * (double) dimensions.z * FLOAT_SIZE;
+		double pixelCount = (double) dimensions.x * (double) dimensions.y * (double) dimensions.z;
+		double bucketCount = Math.min(maxR2 + 1.0, pixelCount);
+		double rowItems = 0.05 * meanr * Math.max(dimensions.x, Math.max(dimensions.y, dimensions.z));
+		double queueSize = (1.05 * bucketCount + 5 * rowItems) * FLOAT_SIZE;
+		return (3.05 + 0.2 * meanr) * pixelCount * FLOAT_SIZE + Runtime.getRuntime().availableProcessors() * queueSize;
 	}
 
 	/**
@@ -859,14 +1310,22 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 	}
 
 	/**
-	 * Packs block index and start index into one 64-bit value.
+	 * Maximum count of blocks. The block index is stored in the lowest 24 bits of
+	 * the index data word and the start index in the highest 40 bits.
+	 */
+	private static final int MAX_BLOCK_COUNT = (1 << 24) - 1;
+
+	/**
+	 * Packs block index and start index into one 64-bit value. The block index is
+	 * stored as blockIndex + 1 so that zero value (the initial content of the
+	 * index file) denotes pixel whose block has not been written at all.
 	 * 
 	 * @param blockIndex
 	 * @param startIndex
 	 * @return
 	 */
 	private static long setBlockAndStart(int blockIndex, long startIndex) {
-		return (long) blockIndex + ((startIndex & 0xffffffffffffl) << 16);
+		return (long) (blockIndex + 1) | ((startIndex & 0xffffffffffl) << 24);
 	}
 
 	/**
@@ -886,10 +1345,11 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 	 * Extracts block index from data word created by setBlockAndStart.
 	 * 
 	 * @param data
-	 * @return
+	 * @return Block index, or -1 if the data word corresponds to a pixel whose
+	 *         block has not been written.
 	 */
-	private static short getBlockIndex(long data) {
-		return (short) (data & 0x000000000000ffff);
+	private static int getBlockIndex(long data) {
+		return (int) (data & 0xffffff) - 1;
 	}
 
 	/**
@@ -899,226 +1359,680 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 	 * @return
 	 */
 	private static long getStartIndex(long data) {
-		return (data & 0xffffffffffff0000l) >> 16;
+		return data >>> 24;
+	}
+
+	/**
+	 * Size of buffer used to collect encoded rows before writing them to the ri
+	 * data file.
+	 */
+	private static final int RI_WRITE_BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * Gets dimensions of the index file of ri image whose dimensions are given.
+	 * The index file contains one value for each row of the ri image.
+	 */
+	private static Vec3i getIndexDimensions(Vec3i fileDimensions) {
+		return new Vec3i(1, fileDimensions.y, fileDimensions.z);
+	}
+
+	/**
+	 * Temporary storage of the ri image of one dimension. The storage consists of
+	 * an index file and one data file for each block that has been written. The
+	 * storage is opened once for a whole dimension pass: the index file and the
+	 * data files are mapped only once, and the same object serves all the blocks,
+	 * also concurrently. Concurrently processed blocks must not overlap.
+	 * 
+	 * @author miettinen_a
+	 *
+	 */
+	private static class RiTempStore implements AutoCloseable {
+		/**
+		 * Prefix of the file names.
+		 */
+		private String prefix;
+
+		/**
+		 * Dimensions of the whole ri image.
+		 */
+		private Vec3i dimensions;
+
+		/**
+		 * Indicates if the data files are compressed using RiRowCodec.
+		 */
+		private boolean compress;
+
+		/**
+		 * Index file, read-only if the storage is opened for reading.
+		 */
+		private DiskMappedBufferBase index;
+
+		/**
+		 * Data files that have been mapped so far, by block index. Only used when
+		 * reading.
+		 */
+		private Map<Integer, DiskMappedReadBuffer> datFiles = new HashMap<Integer, DiskMappedReadBuffer>();
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param prefix     Prefix of the file names.
+		 * @param dimensions Dimensions of the whole ri image.
+		 * @param compress   Set to true if the data files are compressed.
+		 * @param write      Set to true to create new storage for writing, and to
+		 *                   false to open storage that has been written earlier.
+		 */
+		public RiTempStore(String prefix, Vec3i dimensions, boolean compress, boolean write) throws IOException {
+			this.prefix = prefix;
+			this.dimensions = dimensions;
+			this.compress = compress;
+
+			Vec3i indexDimensions = getIndexDimensions(dimensions);
+			String indexFile = Raw.concatDimensions(prefix, indexDimensions);
+			if (write) {
+				// The new index file is filled with zeroes, i.e. all rows are marked as not
+				// written.
+				FileUtils.createFoldersFor(indexFile);
+				index = new DiskMappedWriteBuffer(indexFile, indexDimensions.y * (long) indexDimensions.z * 8);
+			} else {
+				index = new DiskMappedReadBuffer(indexFile);
+			}
+		}
+
+		public boolean isCompressed() {
+			return compress;
+		}
+
+		public Vec3i getDimensions() {
+			return dimensions;
+		}
+
+		/**
+		 * Gets name of the data file of the given block.
+		 */
+		public String getDatFileName(int blockIndex) {
+			return createDatFileName(prefix, blockIndex);
+		}
+
+		/**
+		 * Writes index entries of rows of a block.
+		 * 
+		 * @param entries  entries[y + z * size.y] is the entry of row (y, z) of the
+		 *                 block.
+		 * @param position Position of the block.
+		 * @param size     Size of the block. Only y and z components are used.
+		 */
+		public void writeIndex(long[] entries, Vec3i position, Vec3i size) {
+			DiskMappedWriteBuffer out = (DiskMappedWriteBuffer) index;
+			for (int z = 0; z < size.z; z++)
+				out.writeLongs((position.z + z) * (long) dimensions.y + position.y, entries, z * size.y, size.y);
+		}
+
+		/**
+		 * Reads index entries of rows of a block. See writeIndex.
+		 */
+		public void readIndex(long[] entries, Vec3i position, Vec3i size) {
+			for (int z = 0; z < size.z; z++)
+				index.readLongs((position.z + z) * (long) dimensions.y + position.y, entries, z * size.y, size.y);
+		}
+
+		/**
+		 * Gets data file of the given block. The file is mapped when it is needed
+		 * for the first time.
+		 */
+		public synchronized DiskMappedReadBuffer getDatFile(int blockIndex) throws IOException {
+			DiskMappedReadBuffer dat = datFiles.getOrDefault(blockIndex, null);
+			if (dat == null) {
+				dat = new DiskMappedReadBuffer(getDatFileName(blockIndex));
+				datFiles.put(blockIndex, dat);
+			}
+			return dat;
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (DiskMappedReadBuffer b : datFiles.values()) {
+				try {
+					b.close();
+				} catch (IOException e) {
+					// Do nothing
+				}
+			}
+			datFiles.clear();
+			index.close();
+		}
 	}
 
 	/**
 	 * Writes ri image block to file.
+	 * The block must span whole rows of the file. The index file contains for each
+	 * row the block index and the start of the row in the data file of the block.
+	 * If the store is not compressed, the data file contains for each pixel (in x, y, z order)
+	 * count of items followed by dx and dy of each item, all as big endian shorts.
+	 * If the store is compressed, each row is stored as one record encoded using RiRowCodec.
+	 * The rows are encoded into an array and written in large chunks.
 	 */
-	private static void writeRiBlock(RiImage ri, String indexFilePrefix, int blockIndex, Vec3i filePosition,
-			Vec3i fileDimensions) throws FileNotFoundException, IOException {
-		if (blockIndex > Short.MAX_VALUE)
+	private static void writeRiBlock(RiImage ri, RiTempStore store, int blockIndex, Vec3i filePosition)
+			throws FileNotFoundException, IOException {
+		if (blockIndex >= MAX_BLOCK_COUNT)
 			throw new IllegalArgumentException("Too many blocks.");
+		if (filePosition.x != 0 || ri.width() != store.getDimensions().x)
+			throw new IllegalArgumentException("Ri blocks must span whole rows.");
 
-		ImageI64 index = new ImageI64(ri.getDimensions());
+		// index[y + z * height] is the index entry of row (y, z).
+		long[] index = new long[ri.height() * ri.depth()];
+		boolean compress = store.isCompressed();
 
-		String indexFile = Raw.concatDimensions(indexFilePrefix, fileDimensions);
+		String blockFileName = store.getDatFileName(blockIndex);
 
-		FileUtils.createFoldersFor(indexFile);
+		try (FileChannel out = FileChannel.open(Paths.get(blockFileName), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
 
-		String blockFileName = createDatFileName(indexFilePrefix, blockIndex);
+			ByteBuffer buffer = ByteBuffer.allocate(RI_WRITE_BUFFER_SIZE);
+			short[] row = new short[ri.width()];
 
-		try (DataOutputStream out = new DataOutputStream(
-				new BufferedOutputStream(new FileOutputStream(blockFileName)))) {
+			// Buffers for compressed rows
+			int[] rowOffsets = compress ? new int[ri.width() + 1] : null;
+			int[] rowItems = compress ? new int[ri.width()] : null;
+			byte[] encoded = compress ? new byte[RiRowCodec.getMaxEncodedSize(ri.width(), 0)] : null;
 
+			// Start index is in shorts in the uncompressed format and in bytes in the
+			// compressed format.
 			long startIndex = 0;
 			for (int z = 0; z < ri.depth(); z++) {
 				for (int y = 0; y < ri.height(); y++) {
-					for (int x = 0; x < ri.width(); x++) {
-						// Vec3c pos = new Vec3c(x, y, z);
-						// setBlockAndStart(blockIndex, startIndex, index, pos);
-						index.set(x, y, z, setBlockAndStart(blockIndex, startIndex));
 
-						int[] s = ri.get(x, y, z);
+					index[y + z * ri.height()] = setBlockAndStart(blockIndex, startIndex);
+
+					if (compress) {
+						// Collect items of the row
+						for (int x = 0; x < ri.width(); x++) {
+							int[] s = ri.getItems(x, y, z);
+							int itemStart = ri.getStart(x, y, z);
+							int count = ri.getEnd(x, y, z) - itemStart;
+							if (rowOffsets[x] + count > rowItems.length)
+								rowItems = Arrays.copyOf(rowItems, Math.max(2 * rowItems.length, rowOffsets[x] + count));
+							if (count > 0)
+								System.arraycopy(s, itemStart, rowItems, rowOffsets[x], count);
+							rowOffsets[x + 1] = rowOffsets[x] + count;
+						}
+
+						// Encode the row
+						int maxSize = RiRowCodec.getMaxEncodedSize(ri.width(), rowOffsets[ri.width()]);
+						if (maxSize > encoded.length)
+							encoded = new byte[Math.max(2 * encoded.length, maxSize)];
+						int n = RiRowCodec.encode(rowOffsets, rowItems, ri.width(), encoded, 0);
+						startIndex += n;
+
+						// Add the row to the buffer, and write the buffer if it is full.
+						if (buffer.remaining() < n) {
+							writeFully(out, buffer);
+							if (buffer.capacity() < n)
+								buffer = ByteBuffer.allocate(n);
+						}
+						buffer.put(encoded, 0, n);
+						continue;
+					}
+
+					// Encode the row
+					int n = 0;
+					for (int x = 0; x < ri.width(); x++) {
+						int[] s = ri.getItems(x, y, z);
+						int itemStart = ri.getStart(x, y, z);
 
 						// Write size
-						short count = s != null ? (short) s.length : 0;
-						out.writeShort(count);
+						short count = (short) (ri.getEnd(x, y, z) - itemStart);
+						if (n + 1 + 2 * count > row.length)
+							row = Arrays.copyOf(row, Math.max(2 * row.length, n + 1 + 2 * count));
+						row[n++] = count;
 
 						if (count > 0) {
 							// Write items
-							for (int m = 0; m < s.length; m++) {
-								short val = getSrcX(s[m]);
-								out.writeShort(val);
-
-								val = getSrcY(s[m]);
-								out.writeShort(val);
+							for (int m = itemStart; m < itemStart + count; m++) {
+								row[n++] = getDx(s[m]);
+								row[n++] = getDy(s[m]);
 							}
 						}
+					}
+					startIndex += n;
 
-						startIndex += 2 * count + 1;
+					// Add the row to the buffer, and write the buffer if it is full.
+					if (buffer.remaining() < 2 * n) {
+						writeFully(out, buffer);
+						if (buffer.capacity() < 2 * n)
+							buffer = ByteBuffer.allocate(2 * n);
 					}
+					buffer.asShortBuffer().put(row, 0, n);
+					buffer.position(buffer.position() + 2 * n);
 				}
 			}
+
+			writeFully(out, buffer);
 		}
 
-		Raw.writeBlock(index, indexFile, filePosition, fileDimensions);
+		store.writeIndex(index, filePosition, ri.getDimensions());
 	}
 
 	/**
-	 * Reads ri image block from file.
+	 * Writes contents of the buffer (from start to the current position) to the
+	 * channel and clears the buffer.
 	 */
-	private static void readRiBlock(RiImage ri, String indexFilePrefix, Vec3i start, Vec3i fileDimensions)
-			throws IOException {
-		// index(x, y, z) gives the start index to read from the data file dat.
-		// dat[index(x, y, z)] gives the count of elements.
-		ImageI64 index = new ImageI64(ri.getDimensions());
-
-		String indexFile = Raw.concatDimensions(indexFilePrefix, fileDimensions);
-		Raw.readBlockNoParse(index, indexFile, start, fileDimensions);
+	private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			out.write(buffer);
+		buffer.clear();
+	}
 
-		Map<Short, DiskMappedReadBuffer> datFiles = new HashMap<Short, DiskMappedReadBuffer>();
-		try {
-			for (int z = 0; z < ri.depth(); z++) {
-				for (int y = 0; y < ri.height(); y++) {
-					for (int x = 0; x < ri.width(); x++) {
-						// Vec3c pos = new Vec3c(x, y, z);
-						long startItem = index.get(x, y, z);
-						short blockIndex = getBlockIndex(startItem);
-						long startIndex = getStartIndex(startItem);
-
-						// Map dat file if it is not open.
-						DiskMappedReadBuffer dat = datFiles.getOrDefault(blockIndex, null);
-						if (dat == null) {
-							String datFileName = createDatFileName(indexFilePrefix, blockIndex);
-							dat = new DiskMappedReadBuffer(datFileName);
-							datFiles.put(blockIndex, dat);
-						}
+	/**
+	 * Reads ri image block from file written by writeRiBlock.
+	 * The block must span whole rows of the file. Each row is stored in the data
+	 * file of the block that wrote it.
+	 */
+	private static void readRiBlock(RiImage ri, RiTempStore store, Vec3i start) throws IOException {
+		if (start.x != 0 || ri.width() != store.getDimensions().x)
+			throw new IllegalArgumentException("Ri blocks must span whole rows.");
+
+		// index[y + z * height] gives the block and the start index of row (y, z) in the
+		// data file of the block.
+		long[] index = new long[ri.height() * ri.depth()];
+		store.readIndex(index, start, ri.getDimensions());
+
+		// The rows of this block that are stored in the same data file are stored
+		// consecutively, so the range from the start of the first row to the end of the
+		// last row is loaded at once. This lets the operating system read the data
+		// sequentially in large chunks. This is called from the I/O threads, so the
+		// block processing threads do not wait for the loading.
+		Map<Integer, long[]> ranges = new HashMap<Integer, long[]>();
+		for (long startItem : index) {
+			int blockIndex = getBlockIndex(startItem);
+			if (blockIndex >= 0) {
+				// Convert start index to bytes
+				long rowStart = getStartIndex(startItem) * (store.isCompressed() ? 1 : 2);
+				long[] range = ranges.get(blockIndex);
+				if (range == null)
+					ranges.put(blockIndex, new long[] { rowStart, rowStart });
+				else {
+					range[0] = Math.min(range[0], rowStart);
+					range[1] = Math.max(range[1], rowStart);
+				}
+			}
+		}
+		for (Map.Entry<Integer, long[]> range : ranges.entrySet()) {
+			long[] r = range.getValue();
+			DiskMappedReadBuffer dat = store.getDatFile(range.getKey());
+			long end = getRowEnd(dat, r[1], store.isCompressed(), ri.width());
+			dat.prefetch(r[0], end - r[0]);
+		}
 
-						short count = dat.readShort(startIndex);
+		// The ri image is built line by line in x direction.
+		short[] row = new short[ri.width()];
+		byte[] encoded = new byte[RiRowCodec.getMaxEncodedSize(ri.width(), 0)];
+		for (int z = 0; z < ri.depth(); z++) {
+			for (int y = 0; y < ri.height(); y++) {
 
-						int[] vals = new int[count];
-						for (int i = 0; i < count; i++) {
-							short srcX = dat.readShort((startIndex + 1) + 2 * i);
-							short srcY = dat.readShort((startIndex + 1) + 2 * i + 1);
-							vals[i] = makeRiStorageItem(srcX, srcY);
-						}
-						ri.set(x, y, z, vals);
+				// Rows in empty blocks were not written, and they do not contain any items.
+				long startItem = index[y + z * ri.height()];
+				int blockIndex = getBlockIndex(startItem);
+				if (blockIndex < 0)
+					continue;
+
+				DiskMappedReadBuffer dat = store.getDatFile(blockIndex);
+				long rowStart = getStartIndex(startItem);
+				int[] offsets = new int[ri.width() + 1];
+				int[] vals;
+
+				if (store.isCompressed()) {
+					dat.readBytes(rowStart, encoded, 0, RiRowCodec.HEADER_SIZE);
+					int length = RiRowCodec.getRecordLength(encoded, 0);
+					if (length < 0)
+						throw new IOException("Inconsistent ri data in " + store.getDatFileName(blockIndex) + ".");
+					if (length > encoded.length)
+						encoded = new byte[Math.max(2 * encoded.length, length)];
+					dat.readBytes(rowStart + RiRowCodec.HEADER_SIZE, encoded, 0, length);
+
+					vals = RiRowCodec.decode(encoded, 0, length, ri.width(), offsets);
+				} else {
+					// Length of the row is not stored, so read the count of items of each pixel
+					// and then the items.
+					DiskMappedBufferBase.Cursor cursor = dat.cursor(rowStart * 2);
+					int n = 0;
+					for (int x = 0; x < ri.width(); x++) {
+						short count = cursor.readShort();
+						if (count < 0)
+							throw new IOException("Inconsistent ri data in " + store.getDatFileName(blockIndex) + ".");
+						if (n + 2 * count > row.length)
+							row = Arrays.copyOf(row, Math.max(2 * row.length, n + 2 * count));
+						if (count > 0)
+							cursor.readShorts(row, n, 2 * count);
+						n += 2 * count;
+						offsets[x + 1] = offsets[x] + count;
 					}
-				}
 
-			}
-		} finally {
-			for (DiskMappedReadBuffer b : datFiles.values()) {
-				try {
-					b.close();
-				} catch (IOException e) {
-					// Do nothing
+					vals = new int[offsets[ri.width()]];
+					for (int i = 0; i < vals.length; i++)
+						vals[i] = makeRiStorageItem(row[2 * i], row[2 * i + 1]);
 				}
+
+				ri.setLine(ri.getLineIndex(0, y, z), offsets, vals);
 			}
 		}
+	}
+
+	/**
+	 * Gets position one past the last byte of row that starts at the given byte
+	 * position of ri data file written by writeRiBlock.
+	 * 
+	 * @param compressed Indicates if the data file is compressed.
+	 * @param width      Count of pixels in the row.
+	 */
+	private static long getRowEnd(DiskMappedReadBuffer dat, long rowStart, boolean compressed, int width) {
+		if (compressed) {
+			byte[] header = new byte[RiRowCodec.HEADER_SIZE];
+			dat.readBytes(rowStart, header, 0, header.length);
+			return rowStart + header.length + Math.max(0, RiRowCodec.getRecordLength(header, 0));
+		}
 
+		// Each pixel stores count of items and two shorts for each item. Invalid data
+		// is detected when the row is actually read, so here it is enough not to read
+		// past the end of the file.
+		DiskMappedBufferBase.Cursor cursor = dat.cursor(rowStart);
+		for (int x = 0; x < width && cursor.getPosition() < dat.size(); x++) {
+			short count = cursor.readShort();
+			cursor.skip(4L * Math.max(0, (int) count));
+		}
+		return cursor.getPosition();
 	}
 
-	private static void processDimensionBlock(Image dmap2, Image tmap2, int dim, String riPrefix, Vec3i blockOrigin,
-			Vec3i blockSize, int blockIndex) throws InterruptedException, IOException {
-
-		// Make sure block does not go out of the original image
-		if (blockOrigin.x + blockSize.x > dmap2.width())
-			blockSize.x = dmap2.width() - blockOrigin.x;
-		if (blockOrigin.y + blockSize.y > dmap2.height())
-			blockSize.y = dmap2.height() - blockOrigin.y;
-		if (blockOrigin.z + blockSize.z > dmap2.depth())
-			blockSize.z = dmap2.depth() - blockOrigin.z;
-
-		// This can be used for rudimentary I/O timing
-		// StopWatch t = new StopWatch();
-
-		// Initialize ri for the block
-		RiImage ri = new RiImage(blockSize);
-		if (dim > 0) {
-			// Read ri from previous dimension output
-			// t.start();
-			readRiBlock(ri, riPrefix + "_dim" + (dim - 1), blockOrigin, dmap2.getDimensions());
-			// IJ.log("Reading took " + t.stop() + " ms");
-		} else {
-			// Initialize ri from dmap2
-			for (int z = 0; z < ri.depth(); z++) {
-				for (int y = 0; y < ri.height(); y++) {
-					for (int x = 0; x < ri.width(); x++) {
-						// Vec3c p = new Vec3c(x, y, z);
-						// float R2 = dmap2.get(p.add(blockOrigin));
-						float R2 = dmap2.get(x + blockOrigin.x, y + blockOrigin.y, z + blockOrigin.z);
-						if (R2 > 0) {
-							// ri.get(p).add(new RiStorageItem((short) (x + blockOrigin.x), (short) (y +
-							// blockOrigin.y)));
-							// ri.set(p, new int[] { makeRiStorageItem((short) (x + blockOrigin.x), (short)
-							// (y + blockOrigin.y)) });
-							ri.set(x, y, z, new int[] {
-									makeRiStorageItem((short) (x + blockOrigin.x), (short) (y + blockOrigin.y)) });
-						}
-					}
-				}
-			}
+	/**
+	 * Makes sure block does not go out of the original image.
+	 */
+	private static void clampBlock(Vec3i blockOrigin, Vec3i blockSize, Vec3i dimensions) {
+		if (blockOrigin.x + blockSize.x > dimensions.x)
+			blockSize.x = dimensions.x - blockOrigin.x;
+		if (blockOrigin.y + blockSize.y > dimensions.y)
+			blockSize.y = dimensions.y - blockOrigin.y;
+		if (blockOrigin.z + blockSize.z > dimensions.z)
+			blockSize.z = dimensions.z - blockOrigin.z;
+	}
+
+	/**
+	 * Reads ri of a block from the output of the previous dimension.
+	 * 
+	 * @param in Storage of the output of the previous dimension, or null in the
+	 *           first dimension.
+	 * @return The ri image, or null in the first dimension where ri is initialized
+	 *         from the ridge points in processDimensionSuper.
+	 */
+	private static RiImage readDimensionBlock(RiTempStore in, Vec3i blockOrigin, Vec3i blockSize) throws IOException {
+
+		if (in == null)
+			return null;
+
+		RiImage ri = new RiImage(blockSize, 0);
+		readRiBlock(ri, in, blockOrigin);
+		return ri;
+	}
+
+	/**
+	 * Processes one block.
+	 * 
+	 * @param ri    Ri of the block, as returned by readDimensionBlock.
+	 * @param maxR2 Maximum squared radius of the spheres.
+	 * @return Ri image that must be written using writeDimensionBlock, or null in
+	 *         the final pass.
+	 */
+	private static RiImage processDimensionBlock(RiImage ri, RidgePoints centers, ImageI32 tmap2, int dim,
+			Vec3i blockOrigin, Vec3i blockSize, Occupancy occupancy, int maxR2) throws InterruptedException {
+
+		RiImage out = null;
+		if (dim < centers.getDimensionality() - 1)
+			out = new RiImage(blockSize, dim);
+
+		// The centers of the spheres of the ri items are in the same slice as the items,
+		// but they may be up to maxR rows away from the block in the y direction.
+		int maxR = (int) Math.ceil(Math.sqrt(maxR2));
+		RidgePointIndex centerIndex = null;
+		if (ri != null || dim == centers.getDimensionality() - 1)
+			centerIndex = new RidgePointIndex(centers, Math.max(0, blockOrigin.y - maxR),
+					Math.min(centers.height(), blockOrigin.y + blockSize.y + maxR), blockOrigin.z, blockOrigin.z + blockSize.z);
+
+		processDimensionSuper(ri, out, dim, centers, centerIndex, tmap2, new Box(blockOrigin, blockSize), centers.getDimensionality(),
+				occupancy);
+
+		return out;
+	}
+
+	/**
+	 * Writes ri of a block to temporary file, if any.
+	 * 
+	 * @param out   Ri image returned by processDimensionBlock.
+	 * @param store Storage of the output of this dimension, or null in the final
+	 *              pass.
+	 */
+	private static void writeDimensionBlock(RiImage out, RiTempStore store, Vec3i blockOrigin, int blockIndex)
+			throws IOException {
+		if (out != null) {
+			writeRiBlock(out, store, blockIndex, blockOrigin);
 		}
+	}
 
-		processDimensionSuper(ri, dim, dmap2, tmap2, new Box(blockOrigin, blockSize), dmap2.getDimensionality());
+	/**
+	 * Waits until all tasks of a shut down executor have finished, even if the
+	 * current thread is interrupted. The interrupted status of the thread is
+	 * restored.
+	 */
+	private static void awaitTermination(ExecutorService executor) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				if (executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS))
+					break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
 
-		// Write temporary file, if any
-		if (dim < dmap2.getDimensionality() - 1) {
-			// t.start();
-			writeRiBlock(ri, riPrefix + "_dim" + dim, blockIndex, blockOrigin, dmap2.getDimensions());
-			// IJ.log("Writing took " + t.stop() + " ms");
+	/**
+	 * Waits for task to finish and returns its result. Exceptions thrown by the
+	 * task are re-thrown.
+	 */
+	private static <T> T getResult(Future<T> future) throws InterruptedException, IOException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof InterruptedException)
+				throw (InterruptedException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new RuntimeException("Not all blocks were processed succesfully. " + cause.getMessage(), cause);
 		}
 	}
 
-	private static Vec3i calculateBlockSize(Image dmap2, int dim, double meanr) {
+	/**
+	 * Determines size of blocks such that processing of one block requires less
+	 * than the given amount of memory.
+	 * 
+	 * @return Block size, or null if even the smallest possible blocks require too
+	 *         much memory.
+	 */
+	private static Vec3i calculateBlockSize(RidgePoints centers, int dim, double meanr, int maxR2, double memory) {
 		// Determine suitable block size
 		Vec3i subDivisions = new Vec3i(1, 1, 1);
-		Vec3i blockSize = dmap2.getDimensions();
+		Vec3i blockSize = centers.getDimensions();
 		int distributionDirection = getDistributionDirection(dim);
-		while (getMemoryRequirement(blockSize, meanr) >= IJ.maxMemory()) {
+		while (getMemoryRequirement(blockSize, meanr, maxR2) >= memory) {
+			if (blockSize.get(distributionDirection) <= 1)
+				return null;
 			subDivisions.inc(distributionDirection);
-			blockSize = dmap2.getDimensions().divc(subDivisions).add(new Vec3i(1, 1, 1));
-			MathUtils.clamp(blockSize, new Vec3i(0, 0, 0), dmap2.getDimensions());
+			blockSize = centers.getDimensions().divc(subDivisions).add(new Vec3i(1, 1, 1));
+			MathUtils.clamp(blockSize, new Vec3i(0, 0, 0), centers.getDimensions());
 		}
 
 		return blockSize;
 	}
 
+	/**
+	 * Maximum count of blocks that are processed simultaneously. The available
+	 * memory is divided among the blocks, so processing more blocks simultaneously
+	 * makes the blocks smaller. Processing multiple blocks keeps the processors
+	 * busy while other blocks are being read from or written to the disk.
+	 */
+	private static final int MAX_CONCURRENT_BLOCKS = 4;
+
+	/**
+	 * Count of blocks that may be in memory in addition to the blocks being
+	 * processed: one block that is read in advance and one block that is being
+	 * written.
+	 */
+	private static final int PIPELINED_BLOCKS = 2;
+
 	/**
 	 * Subdivides image into smaller blocks and processes each block separately.
+	 * Multiple blocks are processed simultaneously if there are multiple
+	 * processors. Reading and writing of the blocks is done in separate I/O
+	 * threads: ri of the next blocks are read while the current blocks are being
+	 * processed, and the processed blocks are written in the background.
 	 * 
-	 * @param dmap2
+	 * @param centers
 	 * @param tmap
 	 * @param dim
-	 * @param riPrefix
+	 * @param inStore  Storage where ri of the previous dimension is read from, or
+	 *                 null in the first dimension.
+	 * @param outStore Storage where ri of this dimension is written to, or null in
+	 *                 the last dimension.
 	 * @param meanr
+	 * @param maxR2    Maximum squared radius of the spheres.
 	 */
-	private static void subdivideAndProcessDimension(Image dmap2, Image tmap2, int dim, String riPrefix, double meanr)
-			throws InterruptedException, IOException {
+	private static void subdivideAndProcessDimension(RidgePoints centers, ImageI32 tmap2, int dim, RiTempStore inStore,
+			RiTempStore outStore, double meanr, Occupancy occupancy, int maxR2) throws InterruptedException, IOException {
+
+		// Divide the available memory among all the blocks that may be in memory
+		// simultaneously. If the blocks would become too small, keep less blocks in
+		// memory.
+		int concurrentBlocks = Math.max(1, Math.min(MAX_CONCURRENT_BLOCKS, Runtime.getRuntime().availableProcessors()));
+		int inFlightBlocks = concurrentBlocks + PIPELINED_BLOCKS;
+		Vec3i blockSize = calculateBlockSize(centers, dim, meanr, maxR2, (double) IJ.maxMemory() / inFlightBlocks);
+		while (blockSize == null && inFlightBlocks > 1) {
+			inFlightBlocks--;
+			concurrentBlocks = Math.min(concurrentBlocks, inFlightBlocks);
+			blockSize = calculateBlockSize(centers, dim, meanr, maxR2, (double) IJ.maxMemory() / inFlightBlocks);
+		}
 
-		Vec3i blockSize = calculateBlockSize(dmap2, dim, meanr);
+		if (blockSize == null)
+			throw new IllegalArgumentException(
+					"There is not enough memory to process this image. Consider increasing Maximu Memory in Edit->Options->Memory & Threads.");
 
 		// Count blocks for progress reporting
 		int blockCount = 0;
-		for (int blockZ = 0; blockZ < dmap2.depth(); blockZ += blockSize.z) {
-			for (int blockY = 0; blockY < dmap2.height(); blockY += blockSize.y) {
-				for (int blockX = 0; blockX < dmap2.width(); blockX += blockSize.x) {
+		for (int blockZ = 0; blockZ < centers.depth(); blockZ += blockSize.z) {
+			for (int blockY = 0; blockY < centers.height(); blockY += blockSize.y) {
+				for (int blockX = 0; blockX < centers.width(); blockX += blockSize.x) {
 					blockCount++;
 				}
 			}
 		}
 
-		if (blockCount > Short.MAX_VALUE)
+		if (blockCount > MAX_BLOCK_COUNT)
 			throw new IllegalArgumentException(
 					"There is not enough memory to process this image. It must be divided to too many blocks. Consider increasing Maximu Memory in Edit->Options->Memory & Threads.");
 
 		// Process all blocks
-		int blockIndex = 0;
-		for (int blockZ = 0; blockZ < dmap2.depth(); blockZ += blockSize.z) {
-			for (int blockY = 0; blockY < dmap2.height(); blockY += blockSize.y) {
-				for (int blockX = 0; blockX < dmap2.width(); blockX += blockSize.x) {
-
-					IJ.showStatus("Processing block " + (blockIndex + 1) + " / " + blockCount);
-
-					Vec3i blockPos = new Vec3i(blockX, blockY, blockZ);
+		// The blocks do not overlap, so they can be processed simultaneously. The
+		// blocks must be processed in separate threads as processing of each block
+		// uses Loop.
+		// Each block holds one permit of inFlight from the start of reading until the
+		// end of writing, so that at most inFlightBlocks blocks are in memory.
+		ExecutorService ioExecutor = Executors.newFixedThreadPool(concurrentBlocks);
+		ExecutorService blockExecutor = Executors.newFixedThreadPool(concurrentBlocks);
+		Semaphore inFlight = new Semaphore(inFlightBlocks);
+		try {
+			ArrayList<Future<Future<Void>>> results = new ArrayList<Future<Future<Void>>>();
+			AtomicInteger startedBlocks = new AtomicInteger(0);
+			final int totalBlocks = blockCount;
+
+			int blockIndex = 0;
+			for (int blockZ = 0; blockZ < centers.depth(); blockZ += blockSize.z) {
+				for (int blockY = 0; blockY < centers.height(); blockY += blockSize.y) {
+					for (int blockX = 0; blockX < centers.width(); blockX += blockSize.x) {
+
+						Vec3i blockPos = new Vec3i(blockX, blockY, blockZ);
+						Vec3i currBlockSize = new Vec3i(blockSize);
+						clampBlock(blockPos, currBlockSize, centers.getDimensions());
+						int currBlockIndex = blockIndex;
+						blockIndex++;
+
+						// Blocks without foreground pixels do not contain any spheres, so they
+						// need not be processed or saved.
+						if (occupancy.isBlockEmpty(blockPos, currBlockSize)) {
+							startedBlocks.incrementAndGet();
+							continue;
+						}
 
-					processDimensionBlock(dmap2, tmap2, dim, riPrefix, blockPos, blockSize, blockIndex);
+						inFlight.acquire();
+
+						Future<RiImage> read;
+						try {
+							read = ioExecutor.submit(new Callable<RiImage>() {
+								@Override
+								public RiImage call() throws Exception {
+									return readDimensionBlock(inStore, blockPos, currBlockSize);
+								}
+							});
+						} catch (RuntimeException e) {
+							inFlight.release();
+							throw e;
+						}
 
-					blockIndex++;
+						results.add(blockExecutor.submit(new Callable<Future<Void>>() {
+							@Override
+							public Future<Void> call() throws Exception {
+								boolean writeSubmitted = false;
+								try {
+									RiImage ri = getResult(read);
+
+									IJ.showStatus("Processing block " + startedBlocks.incrementAndGet() + " / " + totalBlocks);
+									RiImage out = processDimensionBlock(ri, centers, tmap2, dim, blockPos, currBlockSize, occupancy, maxR2);
+									ri = null;
+
+									Future<Void> write = ioExecutor.submit(new Callable<Void>() {
+										@Override
+										public Void call() throws Exception {
+											try {
+												writeDimensionBlock(out, outStore, blockPos, currBlockIndex);
+											} finally {
+												inFlight.release();
+											}
+											return null;
+										}
+									});
+									writeSubmitted = true;
+									return write;
+								} finally {
+									if (!writeSubmitted)
+										inFlight.release();
+								}
+							}
+						}));
+					}
 				}
 			}
+
+			for (Future<Future<Void>> result : results)
+				getResult(getResult(result));
+		} finally {
+			// The blocks use the temporary storage, so wait until they have stopped before
+			// the storage is closed.
+			blockExecutor.shutdownNow();
+			ioExecutor.shutdownNow();
+			awaitTermination(blockExecutor);
+			awaitTermination(ioExecutor);
 		}
 
 	}
@@ -1134,27 +2048,99 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 	 * @param meanRadius        Mean radius, as returned by calcNonZeroMeanR method.
 	 * @throws InterruptedException
 	 */
-	public static void thickmap2MultiBlock(Image dmap2, Image tmap2, String tempDirSuggestion, double meanRadius)
+	public static void thickmap2MultiBlock(ImageI32 dmap2, ImageI32 tmap2, String tempDirSuggestion, double meanRadius)
 			throws InterruptedException, IOException {
+		thickmap2MultiBlock(dmap2, tmap2, tempDirSuggestion, meanRadius, Occupancy.all(dmap2.getDimensions()));
+	}
+
+	/**
+	 * Calculate squared local radius from squared distance map. Process the image
+	 * in blocks in order to save RAM. Temporary results are saved to disk. Pixel
+	 * rows and blocks that do not contain foreground pixels are skipped.
+	 * 
+	 * @param dmap2
+	 * @param tmap2
+	 * @param tempDirSuggestion Directory (suggestion) where temporary files can be
+	 *                          saved.
+	 * @param meanRadius        Mean radius, as returned by calcNonZeroMeanR method.
+	 * @param occupancy         Occupancy of the foreground pixels. All the spheres
+	 *                          defined by dmap2 must be inside the non-empty pixel
+	 *                          rows.
+	 * @throws InterruptedException
+	 */
+	public static void thickmap2MultiBlock(ImageI32 dmap2, ImageI32 tmap2, String tempDirSuggestion, double meanRadius,
+			Occupancy occupancy) throws InterruptedException, IOException {
+		thickmap2MultiBlock(RidgePoints.of(dmap2, occupancy), tmap2, tempDirSuggestion, meanRadius, occupancy);
+	}
+
+	/**
+	 * Calculate squared local radius from distance ridge points. Process the image
+	 * in blocks in order to save RAM. Temporary results are saved to disk. Pixel
+	 * rows and blocks that do not contain foreground pixels are skipped.
+	 * 
+	 * @param centers           Distance ridge points.
+	 * @param tmap2
+	 * @param tempDirSuggestion Directory (suggestion) where temporary files can be
+	 *                          saved.
+	 * @param meanRadius        Mean radius, as returned by calcNonZeroMeanR method.
+	 * @param occupancy         Occupancy of the foreground pixels. All the spheres
+	 *                          defined by the ridge points must be inside the
+	 *                          non-empty pixel rows.
+	 * @throws InterruptedException
+	 */
+	public static void thickmap2MultiBlock(RidgePoints centers, ImageI32 tmap2, String tempDirSuggestion, double meanRadius,
+			Occupancy occupancy) throws InterruptedException, IOException {
+		thickmap2MultiBlock(centers, tmap2, tempDirSuggestion, meanRadius, occupancy, false);
+	}
+
+	/**
+	 * Calculate squared local radius from distance ridge points. Process the image
+	 * in blocks in order to save RAM. Temporary results are saved to disk,
+	 * optionally compressed. Pixel rows and blocks that do not contain foreground
+	 * pixels are skipped.
+	 * 
+	 * @param centers           Distance ridge points.
+	 * @param tmap2
+	 * @param tempDirSuggestion Directory (suggestion) where temporary files can be
+	 *                          saved.
+	 * @param meanRadius        Mean radius, as returned by calcNonZeroMeanR method.
+	 * @param occupancy         Occupancy of the foreground pixels. All the spheres
+	 *                          defined by the ridge points must be inside the
+	 *                          non-empty pixel rows.
+	 * @param compressTempFiles Set to true to compress the temporary files. This
+	 *                          makes the files much smaller but costs some
+	 *                          processing time.
+	 * @throws InterruptedException
+	 */
+	public static void thickmap2MultiBlock(RidgePoints centers, ImageI32 tmap2, String tempDirSuggestion, double meanRadius,
+			Occupancy occupancy, boolean compressTempFiles) throws InterruptedException, IOException {
 
-		buildCircleLookup(dmap2);
+		int maxR2 = buildCircleLookup(centers);
 
 		String riPrefix = createTempFilename(tempDirSuggestion);
 		Path fullPath = Paths.get(riPrefix);
 		Path riDir = fullPath.getParent();
 		String globPrefix = fullPath.getFileName().toString();
 
-		for (int dim = 0; dim < dmap2.getDimensionality(); dim++) {
+		for (int dim = 0; dim < centers.getDimensionality(); dim++) {
 			// Process this dimension
-			subdivideAndProcessDimension(dmap2, tmap2, dim, riPrefix, meanRadius);
+			// Ri of the previous dimension is read from and ri of this dimension is
+			// written to temporary storage that is opened once for all the blocks.
+			Vec3i dims = centers.getDimensions();
+			boolean lastDim = dim >= centers.getDimensionality() - 1;
+			try (RiTempStore inStore = dim > 0 ? new RiTempStore(riPrefix + "_dim" + (dim - 1), dims, compressTempFiles, false) : null;
+					RiTempStore outStore = !lastDim ? new RiTempStore(riPrefix + "_dim" + dim, dims, compressTempFiles, true) : null) {
+				subdivideAndProcessDimension(centers, tmap2, dim, inStore, outStore, meanRadius, occupancy, maxR2);
+			}
 
 			// Delete temporary files from previous round
-			System.gc(); // Try to induce GC to close open and unnecessary memory mapped files.
+			// The files have been unmapped when the storage was closed.
 			ArrayList<Path> items = FileUtils.buildFileList(riDir, globPrefix + "_dim" + (dim - 1) + "_*");
 			for (Path p : items) {
 				if (!FileUtils.tryDelete(p))
-					// We might not be able to delete the file if the Java runtime has not yet freed
-					// all file mappings to that file.
+					// We might not be able to delete the file if the Java runtime does not support
+					// releasing the file mappings explicitly, and they have not been garbage
+					// collected yet.
 					IJ.log("Unable to delete temporary file: " + p.toString() + " Please delete it manually.");
 			}
 		}
@@ -1172,20 +2158,108 @@ public class Squared_Distance_Ridge_To_Squared_Radius_Map_ implements PlugInFilt
 	 * @throws InterruptedException
 	 * @throws IOException
 	 */
-	public static void thickmap2(Image dmap2, Image tmap2, String tempDirSuggestion)
+	public static void thickmap2(ImageI32 dmap2, ImageI32 tmap2, String tempDirSuggestion)
+			throws InterruptedException, IOException {
+		thickmap2(dmap2, tmap2, tempDirSuggestion, Occupancy.all(dmap2.getDimensions()));
+	}
+
+	/**
+	 * Calculate squared local radius from squared distance map. If the image is
+	 * large it is processed in blocks. Pixel rows and blocks that do not contain
+	 * foreground pixels are skipped.
+	 * 
+	 * @param dmap2
+	 * @param tmap2
+	 * @param tempDirSuggestion Directory (suggestion) where temporary files can be
+	 *                          saved.
+	 * @param occupancy         Occupancy of the foreground pixels. All the spheres
+	 *                          defined by dmap2 must be inside the non-empty pixel
+	 *                          rows.
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public static void thickmap2(ImageI32 dmap2, ImageI32 tmap2, String tempDirSuggestion, Occupancy occupancy)
 			throws InterruptedException, IOException {
-		double meanr = calcNonZeroMeanR(dmap2);
+		thickmap2(RidgePoints.of(dmap2, occupancy), tmap2, tempDirSuggestion, occupancy);
+	}
 
-		Vec3i blockSize = calculateBlockSize(dmap2, 0, meanr);
-		if (blockSize.equals(dmap2.getDimensions())) {
+	/**
+	 * Calculate squared local radius from distance ridge points. If the image is
+	 * large it is processed in blocks. Pixel rows and blocks that do not contain
+	 * foreground pixels are skipped.
+	 * 
+	 * @param centers           Distance ridge points.
+	 * @param tmap2             At output, squared radius map.
+	 * @param tempDirSuggestion Directory (suggestion) where temporary files can be
+	 *                          saved.
+	 * @param occupancy         Occupancy of the foreground pixels. All the spheres
+	 *                          defined by the ridge points must be inside the
+	 *                          non-empty pixel rows.
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public static void thickmap2(RidgePoints centers, ImageI32 tmap2, String tempDirSuggestion, Occupancy occupancy)
+			throws InterruptedException, IOException {
+		thickmap2(centers, tmap2, tempDirSuggestion, occupancy, false);
+	}
+
+	/**
+	 * Calculate squared local radius from distance ridge points. If the image is
+	 * large it is processed in blocks. Pixel rows and blocks that do not contain
+	 * foreground pixels are skipped.
+	 * 
+	 * @param centers           Distance ridge points.
+	 * @param tmap2             At output, squared radius map.
+	 * @param tempDirSuggestion Directory (suggestion) where temporary files can be
+	 *                          saved.
+	 * @param occupancy         Occupancy of the foreground pixels. All the spheres
+	 *                          defined by the ridge points must be inside the
+	 *                          non-empty pixel rows.
+	 * @param compressTempFiles Set to true to compress the temporary files if the
+	 *                          image is processed in blocks.
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public static void thickmap2(RidgePoints centers, ImageI32 tmap2, String tempDirSuggestion, Occupancy occupancy,
+			boolean compressTempFiles) throws InterruptedException, IOException {
+		double meanr = calcNonZeroMeanR(centers);
+
+		Vec3i blockSize = calculateBlockSize(centers, 0, meanr, centers.max(), IJ.maxMemory());
+		if (blockSize != null && blockSize.equals(centers.getDimensions())) {
 			// Process in just one block
 			// This is faster but requires more memory
-			thickmap2SingleBlock(dmap2, tmap2);
+			thickmap2SingleBlock(centers, tmap2, occupancy);
 		} else {
-			thickmap2MultiBlock(dmap2, tmap2, tempDirSuggestion, meanr);
+			thickmap2MultiBlock(centers, tmap2, tempDirSuggestion, meanr, occupancy, compressTempFiles);
 		}
 	}
 
+	/**
+	 * Calculate squared local radius from squared distance map. If the image is
+	 * large it is processed in blocks. Float version of
+	 * thickmap2(ImageI32, ImageI32, String) that rounds the input values to the
+	 * nearest integers.
+	 * 
+	 * @param dmap2
+	 * @param tmap2
+	 * @param tempDirSuggestion Directory (suggestion) where temporary files can be
+	 *                          saved.
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public static void thickmap2(Image dmap2, Image tmap2, String tempDirSuggestion)
+			throws InterruptedException, IOException {
+		ImageI32 dmap2i = new ImageI32(dmap2.getDimensions());
+		ImageUtils.round(dmap2, dmap2i);
+
+		ImageI32 tmap2i = new ImageI32(tmap2.getDimensions());
+		ImageUtils.round(tmap2, tmap2i);
+
+		thickmap2(dmap2i, tmap2i, tempDirSuggestion);
+
+		ImageUtils.convert(tmap2i, tmap2);
+	}
+
 	/**
 	 * Finds out where the given image is saved or where it is loaded from.
 	 * 
@@ -1,5 +1,6 @@
 package fastthickmap;
 
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import ij.IJ;
@@ -44,6 +45,57 @@ public class Squared_Radius_Map_To_Thickness_Map_ implements PlugInFilter {
 
 	}
 
+	/**
+	 * Calculate thickness map from squared local radius map.
+	 * 
+	 * @param rmap2 Squared local radius map.
+	 * @param tmap  At output, thickness map. The dimensions of the image must equal to those of rmap2.
+	 * @throws InterruptedException
+	 */
+	public static void finalizeThickmap(ImageI32 rmap2, Image tmap) throws InterruptedException {
+		finalizeThickmap(rmap2, tmap, Occupancy.all(rmap2.getDimensions()));
+	}
+
+	/**
+	 * Calculate thickness map from squared local radius map. Pixel rows that do
+	 * not contain foreground pixels are set to zero without reading rmap2.
+	 * 
+	 * @param rmap2     Squared local radius map.
+	 * @param tmap      At output, thickness map. The dimensions of the image must
+	 *                  equal to those of rmap2.
+	 * @param occupancy Occupancy of the foreground pixels.
+	 * @throws InterruptedException
+	 */
+	public static void finalizeThickmap(ImageI32 rmap2, Image tmap, Occupancy occupancy) throws InterruptedException {
+
+		AtomicInteger progress = new AtomicInteger(0);
+		Loop.withIndex(0, rmap2.depth(), new Loop.Each() {
+
+			@Override
+			public void run(long zl) {
+
+				int z = (int)zl;
+				
+				int[] src = rmap2.getSlice(z);
+				float[] dst = tmap.getSlice(z);
+				int w = rmap2.width();
+				for (int y = 0; y < rmap2.height(); y++) {
+					int start = y * w;
+					if (occupancy.isRowEmpty(y, z)) {
+						Arrays.fill(dst, start, start + w, 0);
+					}
+					else {
+						for (int n = start; n < start + w; n++)
+							dst[n] = (float) (2 * Math.sqrt(src[n]));
+					}
+				}
+
+				IJ.showProgress(progress.incrementAndGet(), rmap2.depth());
+			}
+		});
+
+	}
+
 	private ImagePlus iplus;
 
 	@Override
@@ -4,12 +4,10 @@ import java.io.IOException;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.gui.GenericDialog;
 import ij.process.StackConverter;
 import ij.plugin.ContrastEnhancer;
 import ij.plugin.filter.PlugInFilter;
-import ij.process.FloatProcessor;
 import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
 
@@ -28,6 +26,7 @@ public class Thickness_Map_ implements PlugInFilter {
 		
 		boolean approximation = defaultIntApprox;
 		String tempDir = defaultTempDir;
+		boolean compressTempFiles = defaultCompressTempFiles;
 
 		if (iplus.isStack())
 			(new StackConverter(iplus)).convertToGray32();
@@ -36,28 +35,32 @@ public class Thickness_Map_ implements PlugInFilter {
 
 		Image img = new Image(iplus.getStack());
 
-		ImageStack out = iplus.createEmptyStack();
-		for (int z = 0; z < img.depth(); z++)
-			out.addSlice(new FloatProcessor(img.width(), img.height(), new float[img.width() * img.height()]));
-		Image outImg = new Image(out);
-
 		try {
-			IJ.showStatus("Squared distance map...");
-			Squared_Distance_Map_.squaredDistanceMap(img, 0);
-
-			IJ.showStatus("Squared distance ridge...");
-			Squared_Distance_Map_To_Squared_Distance_Ridge_.danielsson(img, outImg);
+			// All intermediate images store exact integer squared distances. The input image is used only
+			// as the input of the distance map and as the output of the finalization.
+			ImageI32 dmap2 = new ImageI32(img.getDimensions());
 			
+			// The ridge is extracted during the last pass of the distance map calculation.
+			// It is stored as a list of points so that no full-size ridge image is needed.
+			IJ.showStatus("Squared distance map and distance ridge...");
+			RidgePoints ridge = new RidgePoints(img.getDimensions());
+			Occupancy occupancy = Squared_Distance_Map_.squaredDistanceMap(img, dmap2, 0, 0, ridge);
+
+			Occupancy sphereOccupancy = occupancy;
 			if(approximation) {
 				IJ.showStatus("Approximation by rounding distance values to the nearest integers...");
-				Round_Squared_Distance_Ridge_.roundSquaredRidge(outImg);
+				Round_Squared_Distance_Ridge_.roundSquaredRidge(ridge);
+				
+				// Rounding may grow the spheres so that they extend (at most two pixels) outside of the foreground.
+				sphereOccupancy = occupancy.dilate(2);
 			}
 
+			// The distance map is not needed anymore, so it is overwritten by the squared radius map.
 			IJ.showStatus("Squared local radius...");
-			Squared_Distance_Ridge_To_Squared_Radius_Map_.thickmap2(outImg, img, tempDir);
+			Squared_Distance_Ridge_To_Squared_Radius_Map_.thickmap2(ridge, dmap2, tempDir, sphereOccupancy, compressTempFiles);
 
 			IJ.showStatus("Finalization...");
-			Squared_Radius_Map_To_Thickness_Map_.finalizeThickmap(img);
+			Squared_Radius_Map_To_Thickness_Map_.finalizeThickmap(dmap2, img, sphereOccupancy);
 
 			IJ.showStatus("");
 			iplus.setStack(iplus.getStack());
@@ -72,6 +75,7 @@ public class Thickness_Map_ implements PlugInFilter {
 
 	static boolean defaultIntApprox = false;
 	static String defaultTempDir = "";
+	static boolean defaultCompressTempFiles = false;
 	
 	@Override
 	public int setup(String arg0, ImagePlus img) {
@@ -87,6 +91,7 @@ public class Thickness_Map_ implements PlugInFilter {
 		dlg.addCheckbox("Integer radius approximation", defaultIntApprox);
 		dlg.addDirectoryField("Temporary directory", tempDir);
 		dlg.addMessage("The temporary directory should be on a fast disk with plenty of free space.");
+		dlg.addCheckbox("Compress temporary files", defaultCompressTempFiles);
 		dlg.showDialog();
 		
 		if(dlg.wasCanceled())
@@ -94,6 +99,7 @@ public class Thickness_Map_ implements PlugInFilter {
 		
 		defaultIntApprox = dlg.getNextBoolean();
 		String newTempDir = dlg.getNextText();
+		defaultCompressTempFiles = dlg.getNextBoolean();
 		
 		// Only save the directory choice if the user changed the directory from the default.
 		// If left to the default value (empty) the directory is updated for each image processed.
@@ -0,0 +1,81 @@
+package fastthickmap;
+
+import java.util.Random;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+/**
+ * Test of the 64-bit squared distance map. This is not part of the plugin.
+ *
+ * @author miettinen_a
+ *
+ */
+public class DistanceMap64Test {
+
+	/**
+	 * Compares the 64-bit squared distance map to the 32-bit one in a random image, and to brute-force
+	 * calculation in a row whose squared distances do not fit into 32 bits.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int diffs = 0;
+
+		// Random image whose distances fit into 32 bits.
+		Random random = new Random(1);
+		Image img = createImage(80, 70, 60);
+		for (int z = 0; z < img.depth(); z++) {
+			float[] slice = img.getSlice(z);
+			for (int n = 0; n < slice.length; n++)
+				slice[n] = random.nextInt(100) == 0 ? 0 : 255;
+		}
+
+		ImageI32 dmap32 = new ImageI32(img.getDimensions());
+		Squared_Distance_Map_.squaredDistanceMap(img, dmap32, 0, 0);
+		ImageI64 dmap64 = new ImageI64(img.getDimensions());
+		Squared_Distance_Map_.squaredDistanceMap(img, dmap64, 0, 0);
+
+		for (int z = 0; z < img.depth(); z++) {
+			for (int n = 0; n < dmap32.getSlice(z).length; n++) {
+				if (dmap32.getSlice(z)[n] != dmap64.getSlice(z)[n])
+					diffs++;
+			}
+		}
+		System.out.println("Random image: " + diffs + " differences.");
+
+		// Row with background only at x = 0. The squared distance at the end of the row exceeds 2^31.
+		final int WIDTH = 50000;
+		Image row = createImage(WIDTH, 1, 1);
+		for (int x = 1; x < WIDTH; x++)
+			row.getSlice(0)[x] = 255;
+
+		if (Squared_Distance_Map_.fitsImageI32(row.getDimensions())) {
+			System.out.println("fitsImageI32 returns true for row of " + WIDTH + " pixels.");
+			diffs++;
+		}
+
+		ImageI64 rowMap = new ImageI64(row.getDimensions());
+		Squared_Distance_Map_.squaredDistanceMap(row, rowMap, 0, 0);
+		int rowDiffs = 0;
+		for (int x = 0; x < WIDTH; x++) {
+			if (rowMap.get(x, 0, 0) != (long) x * (long) x)
+				rowDiffs++;
+		}
+		System.out.println("Long row: " + rowDiffs + " differences.");
+		diffs += rowDiffs;
+
+		if (diffs != 0)
+			System.out.println("FAILED");
+		else
+			System.out.println("OK");
+
+		// The threads of Loop would keep the program running.
+		System.exit(diffs != 0 ? 1 : 0);
+	}
+
+	private static Image createImage(int w, int h, int d) {
+		ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++)
+			stack.addSlice(new FloatProcessor(w, h, new float[w * h]));
+		return new Image(stack);
+	}
+}
@@ -0,0 +1,61 @@
+package fastthickmap;
+
+/**
+ * Test of the local thickness calculation in rows whose length exceeds 46341 pixels,
+ * i.e. where the square of the distance between two pixels in the row does not fit
+ * into an int. This is not part of the plugin.
+ *
+ * @author miettinen_a
+ *
+ */
+public class LongRowTest {
+
+	/**
+	 * Calculates local thickness of a row where a chain of spheres whose radii increase
+	 * from left to right covers a sphere that is not active anymore. When the last sphere
+	 * of the chain ends, the spheres below it are much farther than 46341 pixels
+	 * from the current pixel. The result is compared to a brute-force calculation.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		final int WIDTH = 48000;
+		final int R2 = 250000;
+		final int SPACING = 499;
+
+		ImageI32 dmap2 = new ImageI32(new Vec3i(WIDTH, 1, 1));
+		int[] row = dmap2.getSlice(0);
+		row[0] = 4;
+		for (int k = 0, x = 1; x < WIDTH - 1000; k++, x += SPACING)
+			row[x] = R2 + k;
+
+		ImageI32 tmap2 = new ImageI32(dmap2.getDimensions());
+		Squared_Distance_Ridge_To_Squared_Radius_Map_.thickmap2SingleBlock(dmap2, tmap2);
+
+		int[] expected = new int[WIDTH];
+		for (int cx = 0; cx < WIDTH; cx++) {
+			if (row[cx] != 0) {
+				for (int x = 0; x < WIDTH; x++) {
+					long dx = x - cx;
+					if (dx * dx < row[cx] && row[cx] > expected[x])
+						expected[x] = row[cx];
+				}
+			}
+		}
+
+		int diffs = 0;
+		for (int x = 0; x < WIDTH; x++) {
+			if (tmap2.getSlice(0)[x] != expected[x]) {
+				if (diffs == 0)
+					System.out.println("First difference at x = " + x + ": expected " + expected[x] + ", got " + tmap2.getSlice(0)[x]);
+				diffs++;
+			}
+		}
+
+		if (diffs != 0)
+			System.out.println("FAILED: " + diffs + " pixels differ.");
+		else
+			System.out.println("OK");
+
+		// The threads of Loop would keep the program running.
+		System.exit(diffs != 0 ? 1 : 0);
+	}
+}